@@ -0,0 +1,202 @@
+package org.brann.clock;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Helpers for the compact binary form of the clocks.
+ * 
+ * Counters are written as unsigned variable length integers: seven bits to a
+ * byte, lowest bits first, with the high bit set on every byte but the last.
+ * Process names are written once, in a dictionary at the start of the
+ * encoding, each as a varint length followed by its UTF-8 bytes. Clock entries
+ * refer to a process by its position in the dictionary. Every section is
+ * preceded by the varint count of its entries, and every encoding starts with
+ * a tag byte naming the class encoded.
+ * 
+ * @author John Brann
+ */
+final class BinaryCodec {
+
+	static final byte LOGICAL_CLOCK = 1;
+	static final byte VECTOR_CLOCK = 2;
+	static final byte VECTOR_TIME_STAMP = 3;
+	static final byte MATRIX_CLOCK = 4;
+	static final byte INTERVAL_TREE_CLOCK = 5;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BinaryCodec() {
+	}
+
+	static int varLongLength(long value) {
+
+		int length = 1;
+
+		while ((value >>>= 7) != 0)
+			++length;
+		return length;
+	}
+
+	static void writeVarLong(ByteBuffer buf, long value) {
+
+		while ((value & ~0x7FL) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	static long readVarLong(ByteBuffer buf) {
+
+		long value = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buf.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * read a varint that must be a count or a position - a non-negative int
+	 */
+	static int readVarInt(ByteBuffer buf) {
+
+		long value = readVarLong(buf);
+
+		if (value < 0 || value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Value out of range: " + value);
+		return (int) value;
+	}
+
+	/**
+	 * read the count of a section - each entry takes at least a byte, so a
+	 * count greater than the bytes remaining is malformed
+	 */
+	static int readLength(ByteBuffer buf) {
+
+		int length = readVarInt(buf);
+
+		if (length > buf.remaining())
+			throw new IllegalArgumentException("Length " + length
+					+ " exceeds remaining " + buf.remaining());
+		return length;
+	}
+
+	/**
+	 * read a varint that must be a Logical Clock value held as a long
+	 */
+	static long readCount(ByteBuffer buf) {
+
+		long value = readVarLong(buf);
+
+		if (value < 0)
+			throw new IllegalArgumentException("Logical Clock out of range");
+		return value;
+	}
+
+	static void expect(ByteBuffer buf, byte tag) {
+
+		byte found = buf.get();
+
+		if (found != tag)
+			throw new IllegalArgumentException("Unexpected tag: " + found
+					+ " should be: " + tag);
+	}
+
+	/**
+	 * The process names used by one encoding, in the order they are written
+	 */
+	static final class Dictionary {
+
+		/** position + 1 for each registry index, zero if not present */
+		private int[] positions = new int[0];
+		private int[] ids = new int[8];
+		private byte[][] names = new byte[8][];
+		private int size;
+
+		void add(String name) {
+			add(ProcessRegistry.idOf(name));
+		}
+
+		void add(int id) {
+
+			if (id < positions.length && positions[id] != 0)
+				return;
+
+			if (id >= positions.length)
+				positions = Arrays.copyOf(positions, Math.max(id + 1, positions.length * 2));
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				names = Arrays.copyOf(names, size * 2);
+			}
+			ids[size] = id;
+			names[size] = ProcessRegistry.nameOf(id).getBytes(UTF8);
+			positions[id] = ++size;
+		}
+
+		int positionOf(String name) {
+			return positionOf(ProcessRegistry.idOf(name));
+		}
+
+		int positionOf(int id) {
+			return positions[id] - 1;
+		}
+
+		int encodedLength() {
+
+			int length = varLongLength(size);
+
+			for (int i = 0; i < size; ++i)
+				length += varLongLength(names[i].length) + names[i].length;
+			return length;
+		}
+
+		void encode(ByteBuffer buf) {
+
+			writeVarLong(buf, size);
+			for (int i = 0; i < size; ++i) {
+				writeVarLong(buf, names[i].length);
+				buf.put(names[i]);
+			}
+		}
+
+		/**
+		 * read a dictionary. The names are not registered: that waits until
+		 * the whole encoding has been read, so that a malformed encoding
+		 * leaves nothing behind in the registry.
+		 * 
+		 * @return the name at each position
+		 * @see #ids(String[])
+		 */
+		static String[] decode(ByteBuffer buf) {
+
+			String[] decoded = new String[readLength(buf)];
+
+			for (int i = 0; i < decoded.length; ++i) {
+				byte[] name = new byte[readLength(buf)];
+				buf.get(name);
+				decoded[i] = new String(name, UTF8);
+			}
+			return decoded;
+		}
+
+		/**
+		 * register the names of a dictionary read by decode()
+		 * 
+		 * @return the registry index for each position
+		 */
+		static int[] ids(String[] names) {
+
+			int[] ids = new int[names.length];
+
+			for (int i = 0; i < names.length; ++i)
+				ids[i] = ProcessRegistry.idOf(names[i]);
+			return ids;
+		}
+	}
+}
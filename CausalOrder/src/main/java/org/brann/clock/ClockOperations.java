@@ -7,15 +7,18 @@
 package org.brann.clock;
 
 /**
+ * Operations common to the clocks.
+ *
+ * Comparison takes no locks. Each clock keeps its value in state that is never
+ * altered once published - a tick or merge builds the new value and publishes
+ * it through a volatile field - so a comparison reads a consistent snapshot of
+ * each clock however the clocks are being updated by other threads. Updates to
+ * a single clock are still serialised on that clock.
  *
  * @author  jbrann
  */
 @SuppressWarnings("serial")
-abstract class ClockOperations implements java.io.Serializable {
-    
-    private static final Object emergencyLock = new Object();
-    
-    private static boolean emergencyMutex = false;
+abstract class ClockOperations extends JsonWritable {
     
     /** Creates a new instance of ClockOperations */
     ClockOperations() {
@@ -25,53 +28,16 @@ abstract class ClockOperations implements java.io.Serializable {
         this.doTick();
     }
     
+    /**
+     * Compare snapshots of the two clocks. Implementations must read each
+     * clock's published state once, and must not lock either clock.
+     */
     protected abstract boolean isLessThan (ClockOperations other);
     
     protected boolean lessThan (ClockOperations other) {
         
-        boolean emergency = false;
-        boolean result;
-        ClockOperations firstLock;
-        ClockOperations secondLock;
-        
-        int myHash = System.identityHashCode(this);
-        int otherHash = System.identityHashCode(other);
-        
-        if (myHash < otherHash) {
-            firstLock = this;
-            secondLock = other;
-        } else if (myHash > otherHash) {
-            firstLock = other;
-            secondLock = this;
-        } else { //Uh-oh, equal hash codes.  If these are actually the same object
-                 // there is no problem.  Otherwise there's a risk of deadlock here.
-            if (this.equals(other)) {
-                return false;  // can't be less than self
-            }
-            synchronized (emergencyLock) {
-                while (emergencyMutex) {
-                    try {
-                        emergencyLock.wait();
-                    } catch (InterruptedException ie) {}
-                }
-                emergencyMutex = true;
-                firstLock = this;
-                secondLock = other;
-            }
-        }
-        synchronized (firstLock) {
-            synchronized (secondLock) {
-                
-                result = this.isLessThan(other);
-            }
-        }
-        if (emergency) {
-            synchronized (emergencyLock) {
-                emergencyMutex = false;
-                emergencyLock.notifyAll();
-            }
-        }
-        return result;        
+        // can't be less than self
+        return this != other && this.isLessThan(other);
     }
     
     protected abstract void doTick();
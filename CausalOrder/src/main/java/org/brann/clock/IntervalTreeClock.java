@@ -0,0 +1,756 @@
+package org.brann.clock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+
+/**
+ * Implementation of Interval Tree Clocks (Almeida, Baquero and Fonte).
+ *
+ * An Interval Tree Clock is an alternative to a Vector Clock for a changing
+ * set of processes. It names no process: each clock owns part of the interval
+ * [0, 1) - its identity - and records events as a tree of counters over the
+ * interval. A clock is created as the seed, owning the whole interval, and a
+ * new participant is made by forking an existing clock, which splits its
+ * identity in two. When a participant finishes it is joined back into
+ * another, which takes its identity and events, so the size of a clock
+ * follows the participants that are active, not every process ever seen.
+ *
+ * Ticking records an event in the part of the interval the clock owns, and
+ * merging takes in another clock's events, as for a Vector Clock. A clock to
+ * be carried on a message is a peek: the events without the identity. An
+ * anonymous clock can be compared and merged from, but cannot tick.
+ *
+ * Identities and event trees are never altered once published: each update
+ * builds a new tree, sharing the parts it does not change. Readers, including
+ * comparisons, take no lock.
+ *
+ * @author John Brann
+ * @see VectorClock
+ */
+@SuppressWarnings("serial")
+public class IntervalTreeClock extends ClockOperations implements
+		Serializable, Cloneable {
+
+	/**
+	 * An identity: a leaf owning none (0) or all (1) of its part of the
+	 * interval, or a node splitting it into halves
+	 */
+	private static final class Id implements Serializable {
+
+		static final Id ZERO = new Id(false);
+		static final Id ONE = new Id(true);
+
+		final boolean owned;
+		final Id left;
+		final Id right;
+
+		private Id(boolean owned) {
+			this.owned = owned;
+			this.left = null;
+			this.right = null;
+		}
+
+		Id(Id left, Id right) {
+			this.owned = false;
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean isLeaf() {
+			return left == null;
+		}
+
+		/** a node, normalised: halves that are both 0 or both 1 are a leaf */
+		static Id of(Id left, Id right) {
+
+			if (left == ZERO && right == ZERO)
+				return ZERO;
+			if (left == ONE && right == ONE)
+				return ONE;
+			return new Id(left, right);
+		}
+
+		/** leaves are compared by identity, so keep one of each */
+		private Object readResolve() {
+			return isLeaf() ? (owned ? ONE : ZERO) : this;
+		}
+	}
+
+	/**
+	 * An event tree: a counter for the part of the interval, and for a node
+	 * the trees of its halves, whose counters are relative to it
+	 */
+	private static final class Event implements Serializable {
+
+		final long n;
+		final Event left;
+		final Event right;
+
+		Event(long n) {
+			this(n, null, null);
+		}
+
+		Event(long n, Event left, Event right) {
+			this.n = n;
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean isLeaf() {
+			return left == null;
+		}
+
+		/**
+		 * a node, normalised: equal leaf halves become a leaf, and the least
+		 * counter below is lifted into the node
+		 */
+		static Event of(long n, Event left, Event right) {
+
+			if (left.isLeaf() && right.isLeaf() && left.n == right.n)
+				return new Event(n + left.n);
+
+			long m = Math.min(left.n, right.n);
+
+			return new Event(n + m, left.lift(-m), right.lift(-m));
+		}
+
+		Event lift(long m) {
+			return m == 0 ? this : new Event(n + m, left, right);
+		}
+
+		/** the least counter in a normalised tree */
+		long min() {
+			return n;
+		}
+
+		long max() {
+			return isLeaf() ? n : n + Math.max(left.max(), right.max());
+		}
+
+		Event expand() {
+			return isLeaf() ? new Event(n, ZERO_EVENT, ZERO_EVENT) : this;
+		}
+	}
+
+	private static final Event ZERO_EVENT = new Event(0);
+
+	/**
+	 * the cost given to growing the tree, rather than extending the counters
+	 * already there - greater than the depth of any tree
+	 */
+	private static final int GROW_COST = 1 << 20;
+
+	private static final byte ID_ZERO = 0;
+	private static final byte ID_ONE = 1;
+	private static final byte ID_NODE = 2;
+
+	private volatile Id id;
+	private volatile Event event;
+
+	/**
+	 * Create the seed clock, owning the whole interval, with no events
+	 */
+	public IntervalTreeClock() {
+		this(Id.ONE, ZERO_EVENT);
+	}
+
+	private IntervalTreeClock(Id id, Event event) {
+		this.id = id;
+		this.event = event;
+	}
+
+	/**
+	 * Constructor to build an IntervalTreeClock from the human-readable
+	 * String created by toString()
+	 *
+	 * @param stringValue
+	 *            the JSON string value of the clock
+	 */
+	public IntervalTreeClock(String stringValue) {
+		this(Id.ZERO, ZERO_EVENT);
+		readJson(JsonCodec.parser(stringValue));
+	}
+
+	/**
+	 * Build an IntervalTreeClock from JSON, as produced by toString() or
+	 * writeJson(), held in a byte array in UTF-8 or another Unicode encoding.
+	 */
+	public static IntervalTreeClock parseJson(byte[] json) {
+
+		IntervalTreeClock clock = new IntervalTreeClock(Id.ZERO, ZERO_EVENT);
+
+		clock.readJson(JsonCodec.parser(json, 0, json.length));
+		return clock;
+	}
+
+	/**
+	 * Build an IntervalTreeClock from JSON, as produced by toString() or
+	 * writeJson(), making up the remaining content of the buffer. The
+	 * buffer's position is moved to its limit.
+	 */
+	public static IntervalTreeClock parseJson(ByteBuffer json) {
+
+		IntervalTreeClock clock = new IntervalTreeClock(Id.ZERO, ZERO_EVENT);
+
+		clock.readJson(JsonCodec.parser(json));
+		return clock;
+	}
+
+	/**
+	 * Build an IntervalTreeClock from JSON, as produced by toString() or
+	 * writeJson(), read from the stream. The stream is left open.
+	 */
+	public static IntervalTreeClock parseJson(InputStream json) {
+
+		IntervalTreeClock clock = new IntervalTreeClock(Id.ZERO, ZERO_EVENT);
+
+		clock.readJson(JsonCodec.parser(json));
+		return clock;
+	}
+
+	/**
+	 * Constructor to build an IntervalTreeClock from the binary form written
+	 * by encode(). The buffer's position is moved past the clock. A clock that
+	 * cannot be read is anonymous, with no events.
+	 *
+	 * @param encoded
+	 *            the binary form of the clock
+	 */
+	public IntervalTreeClock(ByteBuffer encoded) {
+
+		this(Id.ZERO, ZERO_EVENT);
+		try {
+			BinaryCodec.expect(encoded, BinaryCodec.INTERVAL_TREE_CLOCK);
+
+			Id decodedId = decodeId(encoded);
+
+			event = decodeEvent(encoded);
+			id = decodedId;
+		} catch (BufferUnderflowException e) {
+			// anonymous and empty - failed to build it.
+			event = ZERO_EVENT;
+		} catch (IllegalArgumentException e) {
+			event = ZERO_EVENT;
+		}
+	}
+
+	/**
+	 * Split this clock's identity in two, keeping one half and giving the
+	 * other to a new clock with the same events: a new participant.
+	 *
+	 * @return the new clock
+	 */
+	public synchronized IntervalTreeClock fork() {
+
+		Id[] halves = split(id);
+
+		id = halves[0];
+		return new IntervalTreeClock(halves[1], event);
+	}
+
+	/**
+	 * Take in the identity and events of a participant that has finished. The
+	 * other clock is not to be used afterwards.
+	 */
+	public synchronized void join(IntervalTreeClock other) {
+
+		Id theirs;
+		Event theirEvents;
+
+		synchronized (other) {
+			theirs = other.id;
+			theirEvents = other.event;
+			other.id = Id.ZERO;
+		}
+		id = sum(id, theirs);
+		event = join(event, theirEvents);
+	}
+
+	/**
+	 * Update this clock with the events found in the argument, which is
+	 * usually a peek carried on a message. The identity is unchanged.
+	 */
+	public synchronized void merge(IntervalTreeClock other) {
+		event = join(event, other.event);
+	}
+
+	/**
+	 * @return an anonymous copy of this clock - its events without its
+	 *         identity - to be carried on a message
+	 */
+	public IntervalTreeClock peek() {
+		return new IntervalTreeClock(Id.ZERO, event);
+	}
+
+	/**
+	 * @return true if this clock owns no part of the interval, and so cannot
+	 *         tick
+	 */
+	public boolean isAnonymous() {
+		return id == Id.ZERO;
+	}
+
+	/**
+	 * Create a new, separate copy of the clock, identity included. Only one of
+	 * the two is to tick afterwards: use fork() for a new participant.
+	 */
+	@Override
+	public synchronized Object clone() {
+		return new IntervalTreeClock(id, event);
+	}
+
+	/**
+	 * Record an event in the part of the interval this clock owns, extending
+	 * an existing counter where possible and otherwise growing the tree as
+	 * little as possible.
+	 *
+	 * @throws IllegalStateException
+	 *             if the clock is anonymous
+	 */
+	@Override
+	protected void doTick() {
+
+		if (id == Id.ZERO)
+			throw new IllegalStateException("An anonymous clock cannot tick");
+
+		Event filled = fill(id, event);
+
+		event = (filled != event && !equal(filled, event)) ? filled
+				: grow(id, event).event;
+	}
+
+	/**
+	 * Logical Relation. This clock is less than the parameter if every event
+	 * recorded here is recorded there, and the parameter records some event
+	 * that this does not.
+	 */
+	public boolean lessThan(IntervalTreeClock other) {
+		return this.lessThan((ClockOperations) other);
+	}
+
+	/**
+	 * @return true if every event recorded in this clock is recorded in the
+	 *         parameter
+	 */
+	public boolean lessThanOrEqual(IntervalTreeClock other) {
+		return leq(event, other.event);
+	}
+
+	@Override
+	protected boolean isLessThan(ClockOperations other) {
+
+		Event mine = event;
+		Event theirs = ((IntervalTreeClock) other).event;
+
+		return leq(mine, theirs) && !leq(theirs, mine);
+	}
+
+	private static Id[] split(Id i) {
+
+		if (i == Id.ZERO)
+			return new Id[] { Id.ZERO, Id.ZERO };
+		if (i == Id.ONE)
+			return new Id[] { new Id(Id.ONE, Id.ZERO), new Id(Id.ZERO, Id.ONE) };
+		if (i.left == Id.ZERO) {
+			Id[] halves = split(i.right);
+
+			return new Id[] { new Id(Id.ZERO, halves[0]),
+					new Id(Id.ZERO, halves[1]) };
+		}
+		if (i.right == Id.ZERO) {
+			Id[] halves = split(i.left);
+
+			return new Id[] { new Id(halves[0], Id.ZERO),
+					new Id(halves[1], Id.ZERO) };
+		}
+		return new Id[] { new Id(i.left, Id.ZERO), new Id(Id.ZERO, i.right) };
+	}
+
+	private static Id sum(Id a, Id b) {
+
+		if (a == Id.ZERO)
+			return b;
+		if (b == Id.ZERO)
+			return a;
+		if (a.isLeaf() || b.isLeaf())
+			throw new IllegalArgumentException("Identities overlap");
+		return Id.of(sum(a.left, b.left), sum(a.right, b.right));
+	}
+
+	private static boolean leq(Event a, Event b) {
+
+		if (a.n > b.n)
+			return false;
+		if (a.isLeaf())
+			return true;
+		if (b.isLeaf())
+			return leq(a.left.lift(a.n), b) && leq(a.right.lift(a.n), b);
+		return leq(a.left.lift(a.n), b.left.lift(b.n))
+				&& leq(a.right.lift(a.n), b.right.lift(b.n));
+	}
+
+	private static boolean equal(Event a, Event b) {
+
+		if (a == b)
+			return true;
+		if (a.n != b.n || a.isLeaf() != b.isLeaf())
+			return false;
+		return a.isLeaf() || (equal(a.left, b.left) && equal(a.right, b.right));
+	}
+
+	private static Event join(Event a, Event b) {
+
+		if (a.isLeaf() && b.isLeaf())
+			return a.n >= b.n ? a : b;
+		if (a.n > b.n)
+			return join(b, a);
+
+		Event x = a.expand();
+		Event y = b.expand();
+		long d = y.n - x.n;
+
+		return Event.of(x.n, join(x.left, y.left.lift(d)),
+				join(x.right, y.right.lift(d)));
+	}
+
+	/**
+	 * extend the counters in the part of the interval the identity owns to
+	 * the greatest counter beside them, without growing the tree
+	 */
+	private static Event fill(Id i, Event e) {
+
+		if (i == Id.ZERO || e.isLeaf())
+			return e;
+		if (i == Id.ONE)
+			return new Event(e.max());
+		if (i.left == Id.ONE) {
+			Event right = fill(i.right, e.right);
+
+			return Event.of(e.n, new Event(Math.max(e.left.max(), right.min())),
+					right);
+		}
+		if (i.right == Id.ONE) {
+			Event left = fill(i.left, e.left);
+
+			return Event.of(e.n, left,
+					new Event(Math.max(e.right.max(), left.min())));
+		}
+		return Event.of(e.n, fill(i.left, e.left), fill(i.right, e.right));
+	}
+
+	/** an event tree grown by one event, and the cost of growing it */
+	private static final class Grown {
+		final Event event;
+		final int cost;
+
+		Grown(Event event, int cost) {
+			this.event = event;
+			this.cost = cost;
+		}
+	}
+
+	private static Grown grow(Id i, Event e) {
+
+		if (e.isLeaf()) {
+			if (i == Id.ONE)
+				return new Grown(new Event(e.n + 1), 0);
+
+			Grown grown = grow(i, e.expand());
+
+			return new Grown(grown.event, grown.cost + GROW_COST);
+		}
+		if (i.left == Id.ZERO) {
+			Grown right = grow(i.right, e.right);
+
+			return new Grown(new Event(e.n, e.left, right.event), right.cost + 1);
+		}
+		if (i.right == Id.ZERO) {
+			Grown left = grow(i.left, e.left);
+
+			return new Grown(new Event(e.n, left.event, e.right), left.cost + 1);
+		}
+
+		Grown left = grow(i.left, e.left);
+		Grown right = grow(i.right, e.right);
+
+		return left.cost < right.cost ? new Grown(new Event(e.n, left.event,
+				e.right), left.cost + 1) : new Grown(new Event(e.n, e.left,
+				right.event), right.cost + 1);
+	}
+
+	/**
+	 * read a complete JSON object - the clock is left anonymous and empty if
+	 * the parser is null or the JSON is bad
+	 */
+	private void readJson(JsonParser jp) {
+
+		if (jp == null)
+			return;
+
+		try {
+			jp.nextToken(); // move to start object
+			jp.nextToken(); // move past start object
+
+			fromJson(jp);
+
+			jp.close();
+		} catch (IOException e) {
+			// swallow the exception,
+			// set clock empty - failed to build it.
+			id = Id.ZERO;
+			event = ZERO_EVENT;
+		}
+	}
+
+	/**
+	 * Extract from the provided JsonParser. {"ID":[1,0],"EV":[0,1,0]}
+	 *
+	 * Parser should point at the field name of the identity, and is left at
+	 * the end of the event tree
+	 */
+	protected void fromJson(JsonParser jp) throws IOException {
+
+		expect(jp, TextConstants.IDENTITY);
+		jp.nextToken();
+
+		Id parsedId = idFromJson(jp);
+
+		jp.nextToken();
+		expect(jp, TextConstants.EVENT_TREE);
+		jp.nextToken();
+		event = eventFromJson(jp);
+		id = parsedId;
+	}
+
+	private static void expect(JsonParser jp, String field) throws IOException {
+
+		if (jp.getCurrentToken() != JsonToken.FIELD_NAME
+				|| jp.getCurrentName().compareTo(field) != 0)
+			throw new JsonParseException("Unexpected field name: "
+					+ jp.getCurrentName() + " should be: " + field,
+					jp.getCurrentLocation());
+	}
+
+	/** parse an identity: 0, 1 or [left, right] */
+	private static Id idFromJson(JsonParser jp) throws IOException {
+
+		if (jp.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+			switch (jp.getIntValue()) {
+			case 0:
+				return Id.ZERO;
+			case 1:
+				return Id.ONE;
+			}
+		} else if (jp.getCurrentToken() == JsonToken.START_ARRAY) {
+			jp.nextToken();
+			Id left = idFromJson(jp);
+			jp.nextToken();
+			Id right = idFromJson(jp);
+			if (jp.nextToken() == JsonToken.END_ARRAY)
+				return Id.of(left, right);
+		}
+		throw new JsonParseException("Bad identity", jp.getCurrentLocation());
+	}
+
+	/** parse an event tree: n or [n, left, right] */
+	private static Event eventFromJson(JsonParser jp) throws IOException {
+
+		if (jp.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+			long n = jp.getLongValue();
+
+			if (n >= 0)
+				return new Event(n);
+		} else if (jp.getCurrentToken() == JsonToken.START_ARRAY) {
+			jp.nextToken();
+			long n = jp.getLongValue();
+			jp.nextToken();
+			Event left = eventFromJson(jp);
+			jp.nextToken();
+			Event right = eventFromJson(jp);
+			if (n >= 0 && jp.nextToken() == JsonToken.END_ARRAY)
+				return Event.of(n, left, right);
+		}
+		throw new JsonParseException("Bad event tree", jp.getCurrentLocation());
+	}
+
+	/**
+	 * create JSON in the provided JsonGenerator
+	 */
+	protected void toJson(JsonGenerator jg) throws JsonGenerationException,
+			IOException {
+
+		Id i;
+		Event e;
+
+		synchronized (this) {
+			i = id;
+			e = event;
+		}
+		jg.writeFieldName(TextConstants.IDENTITY);
+		toJson(jg, i);
+		jg.writeFieldName(TextConstants.EVENT_TREE);
+		toJson(jg, e);
+	}
+
+	private static void toJson(JsonGenerator jg, Id i) throws IOException {
+
+		if (i.isLeaf()) {
+			jg.writeNumber(i == Id.ONE ? 1 : 0);
+		} else {
+			jg.writeStartArray();
+			toJson(jg, i.left);
+			toJson(jg, i.right);
+			jg.writeEndArray();
+		}
+	}
+
+	private static void toJson(JsonGenerator jg, Event e) throws IOException {
+
+		if (e.isLeaf()) {
+			jg.writeNumber(e.n);
+		} else {
+			jg.writeStartArray();
+			jg.writeNumber(e.n);
+			toJson(jg, e.left);
+			toJson(jg, e.right);
+			jg.writeEndArray();
+		}
+	}
+
+	/**
+	 * provide human and computer-readable JSON output. format is:
+	 * {"ID":<identity>,"EV":<event tree>} where an identity is 0, 1 or
+	 * [left, right] and an event tree is a counter or [counter, left, right]
+	 */
+	@Override
+	public String toString() {
+
+		StringWriter sw = new StringWriter();
+
+		try {
+			JsonGenerator jg = JsonCodec.generator(sw);
+			jg.setPrettyPrinter(new DefaultPrettyPrinter());
+
+			jg.writeStartObject();
+
+			toJson(jg);
+
+			jg.writeEndObject();
+			jg.flush();
+			jg.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return sw.toString();
+	}
+
+
+	private static int encodedLength(Id i) {
+		return i.isLeaf() ? 1 : 1 + encodedLength(i.left) + encodedLength(i.right);
+	}
+
+	/**
+	 * an event leaf is written as its counter shifted left one bit, and a node
+	 * as its counter shifted with the low bit set, followed by its halves
+	 */
+	private static int encodedLength(Event e) {
+
+		if (e.isLeaf())
+			return BinaryCodec.varLongLength(e.n << 1);
+		return BinaryCodec.varLongLength(e.n << 1 | 1) + encodedLength(e.left)
+				+ encodedLength(e.right);
+	}
+
+	private static void encode(ByteBuffer buf, Id i) {
+
+		if (i.isLeaf()) {
+			buf.put(i == Id.ONE ? ID_ONE : ID_ZERO);
+		} else {
+			buf.put(ID_NODE);
+			encode(buf, i.left);
+			encode(buf, i.right);
+		}
+	}
+
+	private static void encode(ByteBuffer buf, Event e) {
+
+		if (e.isLeaf()) {
+			BinaryCodec.writeVarLong(buf, e.n << 1);
+		} else {
+			BinaryCodec.writeVarLong(buf, e.n << 1 | 1);
+			encode(buf, e.left);
+			encode(buf, e.right);
+		}
+	}
+
+	private static Id decodeId(ByteBuffer buf) {
+
+		switch (buf.get()) {
+		case ID_ZERO:
+			return Id.ZERO;
+		case ID_ONE:
+			return Id.ONE;
+		case ID_NODE:
+			Id left = decodeId(buf);
+			return Id.of(left, decodeId(buf));
+		default:
+			throw new IllegalArgumentException("Bad identity");
+		}
+	}
+
+	private static Event decodeEvent(ByteBuffer buf) {
+
+		long value = BinaryCodec.readVarLong(buf);
+
+		if ((value & 1) == 0)
+			return new Event(value >>> 1);
+
+		Event left = decodeEvent(buf);
+
+		return Event.of(value >>> 1, left, decodeEvent(buf));
+	}
+
+	/**
+	 * the length of the binary form written by encode()
+	 */
+	public synchronized int encodedLength() {
+		return 1 + encodedLength(id) + encodedLength(event);
+	}
+
+	/**
+	 * Write the compact binary form of the clock: the identity, one byte to a
+	 * node, then the event tree, one varint to a node.
+	 *
+	 * @throws java.nio.BufferOverflowException
+	 *             if the buffer has less than encodedLength() remaining
+	 */
+	public synchronized void encode(ByteBuffer buf) {
+
+		buf.put(BinaryCodec.INTERVAL_TREE_CLOCK);
+		encode(buf, id);
+		encode(buf, event);
+	}
+
+	/**
+	 * the binary form of the clock, as written by encode()
+	 */
+	public synchronized byte[] toBytes() {
+
+		ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+
+		encode(buf);
+		return buf.array();
+	}
+}
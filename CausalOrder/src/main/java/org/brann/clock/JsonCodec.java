@@ -0,0 +1,136 @@
+package org.brann.clock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Helpers for the JSON form of the clocks.
+ * 
+ * A single factory is shared by every clock: a JsonFactory is thread-safe once
+ * configured, and reusing one lets Jackson recycle its buffers. Generators and
+ * parsers it creates leave the caller's stream or Writer open when closed, and
+ * generators write compact JSON unless a pretty printer is set.
+ * 
+ * Parsers read bytes directly, in any Unicode encoding, with no intermediate
+ * String.
+ * 
+ * @author John Brann
+ */
+final class JsonCodec {
+
+	static final JsonFactory FACTORY = new JsonFactory()
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+			.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+	private JsonCodec() {
+	}
+
+	static JsonGenerator generator(Writer out) throws IOException {
+		return FACTORY.createGenerator(out);
+	}
+
+	static JsonGenerator generator(OutputStream out) throws IOException {
+		return FACTORY.createGenerator(out, JsonEncoding.UTF8);
+	}
+
+	/**
+	 * a generator writing UTF-8 into the buffer, from its position. Output is
+	 * buffered by the generator, so a full buffer may only be reported when
+	 * the generator is flushed or closed.
+	 */
+	static JsonGenerator generator(final ByteBuffer buf) throws IOException {
+
+		return generator(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				buf.put((byte) b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				buf.put(b, off, len);
+			}
+		});
+	}
+
+	/**
+	 * a parser for the JSON, or null if it cannot be read
+	 */
+	static JsonParser parser(String json) {
+
+		try {
+			return FACTORY.createParser(json);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * a parser for the JSON, or null if it cannot be read
+	 */
+	static JsonParser parser(byte[] json, int offset, int length) {
+
+		try {
+			return FACTORY.createParser(json, offset, length);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * a parser for the JSON, or null if it cannot be read
+	 */
+	static JsonParser parser(InputStream json) {
+
+		try {
+			return FACTORY.createParser(json);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * a parser for the JSON remaining in the buffer, or null if it cannot be
+	 * read. A heap buffer is parsed in place; a direct buffer is read through
+	 * in blocks, without copying it whole. The buffer's position is moved to
+	 * its limit.
+	 */
+	static JsonParser parser(final ByteBuffer json) {
+
+		if (json.hasArray()) {
+			JsonParser jp = parser(json.array(),
+					json.arrayOffset() + json.position(), json.remaining());
+
+			json.position(json.limit());
+			return jp;
+		}
+		return parser(new InputStream() {
+
+			@Override
+			public int read() {
+				return json.hasRemaining() ? json.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+
+				if (len == 0)
+					return 0;
+				if (!json.hasRemaining())
+					return -1;
+				len = Math.min(len, json.remaining());
+				json.get(b, off, len);
+				return len;
+			}
+		});
+	}
+}
@@ -0,0 +1,80 @@
+package org.brann.clock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The compact JSON output shared by the clocks and the timestamp. Each writes
+ * its fields with toJson(), and gets the complete object written here to a
+ * String, a Writer, a stream or a buffer.
+ * 
+ * @author John Brann
+ */
+@SuppressWarnings("serial")
+abstract class JsonWritable implements Serializable {
+
+	JsonWritable() {
+	}
+
+	/**
+	 * create JSON in the provided JsonGenerator. Does not write the start or
+	 * end object (must be managed by caller).
+	 */
+	protected abstract void toJson(JsonGenerator jg) throws IOException;
+
+	/**
+	 * produce compact JSON: the same as toString(), without the whitespace
+	 */
+	public String toJsonString() {
+
+		StringWriter sw = new StringWriter();
+
+		try {
+			writeJson(sw);
+		} catch (IOException e) {
+			// can't happen when writing to String
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Write compact JSON to the Writer, as a complete object. The Writer is
+	 * left open.
+	 */
+	public void writeJson(Writer out) throws IOException {
+		writeJson(JsonCodec.generator(out));
+	}
+
+	/**
+	 * Write compact JSON to the stream in UTF-8, as a complete object. The
+	 * stream is left open.
+	 */
+	public void writeJson(OutputStream out) throws IOException {
+		writeJson(JsonCodec.generator(out));
+	}
+
+	/**
+	 * Write compact JSON into the buffer in UTF-8, as a complete object. The
+	 * buffer's position is moved past the output.
+	 *
+	 * @throws java.nio.BufferOverflowException
+	 *             if the output does not fit in the buffer
+	 */
+	public void writeJson(ByteBuffer buf) throws IOException {
+		writeJson(JsonCodec.generator(buf));
+	}
+
+	private void writeJson(JsonGenerator jg) throws IOException {
+
+		jg.writeStartObject();
+		toJson(jg);
+		jg.writeEndObject();
+		jg.close();
+	}
+}
@@ -1,10 +1,12 @@
 package org.brann.clock;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -13,12 +15,17 @@ import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 
 /**
- * A LogicalClock is an expandable, positive valued integer. It consists of an
+ * A LogicalClock is an expandable, positive valued integer. While the value
+ * fits it is held in a single long. If it ever outgrows a long it is held as an
  * array of ints, each of which represents a 'digit' in the number. When the
  * existing digit overflows, another is added.
  *
  * the array is "BigEndian" - the highest index to the array is the lowest
- * value.
+ * value. Each 'digit' runs from zero to Integer.MAX_VALUE, and the JSON form is
+ * always the array of 'digits', however the value is held.
+ *
+ * An array of 'digits' is never altered once published: a tick builds a new
+ * one. Comparisons therefore need no lock.
  * 
  * add lines to get a change
  * 
@@ -27,14 +34,19 @@ import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 @SuppressWarnings("serial")
 public class LogicalClock extends ClockOperations implements Serializable {
 
-	/** the 'digits' */
-	private int[] value;
+	/** the radix of a 'digit' */
+	private static final long DIGIT_RADIX = 1L << 31;
+
+	/** the value, while it fits in a long */
+	private volatile long count;
+
+	/** the 'digits' - null until the value outgrows a long */
+	private volatile int[] value;
 
 	/**
 	 * Creates an uninitialized value.
 	 */
 	public LogicalClock() {
-		value = new int[1];
 	}
 
 	/**
@@ -45,11 +57,55 @@ public class LogicalClock extends ClockOperations implements Serializable {
 	 */
 	public LogicalClock(String stringValue) {
 
-		value = new int[1];
+		readJson(JsonCodec.parser(stringValue));
+	}
 
-		try {
-			JsonParser jp = new JsonFactory().createParser(stringValue);
+	/**
+	 * Build a LogicalClock from JSON, as produced by toString() or writeJson(),
+	 * held in a byte array in UTF-8 or another Unicode encoding. The bytes are
+	 * parsed directly, without decoding them to a String.
+	 */
+	public static LogicalClock parseJson(byte[] json) {
+		LogicalClock clock = new LogicalClock();
+
+		clock.readJson(JsonCodec.parser(json, 0, json.length));
+		return clock;
+	}
+
+	/**
+	 * Build a LogicalClock from JSON, as produced by toString() or writeJson(),
+	 * making up the remaining content of the buffer. A heap buffer is parsed
+	 * in place and a direct buffer is read without copying it whole. The
+	 * buffer's position is moved to its limit.
+	 */
+	public static LogicalClock parseJson(ByteBuffer json) {
+		LogicalClock clock = new LogicalClock();
+
+		clock.readJson(JsonCodec.parser(json));
+		return clock;
+	}
 
+	/**
+	 * Build a LogicalClock from JSON, as produced by toString() or writeJson(),
+	 * read from the stream. The stream is left open.
+	 */
+	public static LogicalClock parseJson(InputStream json) {
+		LogicalClock clock = new LogicalClock();
+
+		clock.readJson(JsonCodec.parser(json));
+		return clock;
+	}
+
+	/**
+	 * read a complete JSON object - the clock is left zero if the parser is
+	 * null or the JSON is bad
+	 */
+	private void readJson(JsonParser jp) {
+
+		if (jp == null)
+			return;
+
+		try {
 			jp.nextToken(); // move to start object
 			jp.nextToken(); // move past start object
 
@@ -58,17 +114,47 @@ public class LogicalClock extends ClockOperations implements Serializable {
 			jp.close();
 		} catch (IOException e) {
 			// Failed to parse, clean up the clock and make it zero.
-			this.value = new int[1];
+			this.count = 0;
+			this.value = null;
 		}
+	}
 
+	/**
+	 * Constructor that builds a LogicalClock from its binary form, as written
+	 * by encode(). The buffer's position is moved past the clock.
+	 * 
+	 * @param encoded
+	 */
+	public LogicalClock(ByteBuffer encoded) {
+
+		try {
+			BinaryCodec.expect(encoded, BinaryCodec.LOGICAL_CLOCK);
+			decode(encoded);
+		} catch (BufferUnderflowException e) {
+			// Failed to decode, clean up the clock and make it zero.
+			this.count = 0;
+			this.value = null;
+		} catch (IllegalArgumentException e) {
+			this.count = 0;
+			this.value = null;
+		}
+	}
+
+	/**
+	 * Creates a LogicalClock with the given value.
+	 */
+	LogicalClock(long count) {
+		this.count = count;
 	}
 
 	/**
 	 * new LogicalClock is created identical to the argument value
 	 */
 	public LogicalClock(LogicalClock source) {
-		this.value = new int[source.value.length];
-		System.arraycopy(source.value, 0, this.value, 0, source.value.length);
+		// 'digits' are published before a long value is abandoned, so read
+		// them first
+		this.value = source.value;
+		this.count = source.count;
 	}
 
 	/**
@@ -82,11 +168,26 @@ public class LogicalClock extends ClockOperations implements Serializable {
 
 	protected void toJson(JsonGenerator jg) throws IOException {
 
+		writeDigits(jg, (value == null) ? toDigits(count) : value);
+
+	}
+
+	/**
+	 * Create JSON for a value held as a long, in the same form as
+	 * {@link #toJson(JsonGenerator)}.
+	 */
+	static void toJson(JsonGenerator jg, long count) throws IOException {
+
+		writeDigits(jg, toDigits(count));
+	}
+
+	private static void writeDigits(JsonGenerator jg, int[] digits)
+			throws IOException {
+
 		jg.writeArrayFieldStart(TextConstants.LAMPORT_LOGICAL_CLOCK);
-		for (int i = 0; i < value.length; ++i)
-			jg.writeNumber(value[i]);
+		for (int i = 0; i < digits.length; ++i)
+			jg.writeNumber(digits[i]);
 		jg.writeEndArray();
-
 	}
 
 	/**
@@ -98,7 +199,7 @@ public class LogicalClock extends ClockOperations implements Serializable {
 	public String toString() {
 		StringWriter sw = new StringWriter();
 		try {
-			JsonGenerator jg = new JsonFactory().createGenerator(sw);
+			JsonGenerator jg = JsonCodec.generator(sw);
 			jg.setPrettyPrinter(new DefaultPrettyPrinter());
 
 			jg.writeStartObject();
@@ -117,6 +218,78 @@ public class LogicalClock extends ClockOperations implements Serializable {
 		return sw.toString();
 	}
 
+
+	/**
+	 * the length of the binary form written by encode()
+	 */
+	public synchronized int encodedLength() {
+
+		if (value == null)
+			return 1 + BinaryCodec.varLongLength(count << 1);
+
+		int length = 1 + BinaryCodec.varLongLength((value.length << 1) | 1);
+		for (int i = 0; i < value.length; ++i)
+			length += BinaryCodec.varLongLength(value[i]);
+		return length;
+	}
+
+	/**
+	 * Write the binary form of the clock. A value held as a long is written as
+	 * a varint of the value shifted left one bit. A value held in 'digits' is
+	 * written as a varint of the number of 'digits' shifted left with the low
+	 * bit set, followed by each 'digit'.
+	 * 
+	 * @throws java.nio.BufferOverflowException
+	 *             if the buffer has less than encodedLength() remaining
+	 */
+	public synchronized void encode(ByteBuffer buf) {
+
+		buf.put(BinaryCodec.LOGICAL_CLOCK);
+
+		if (value == null) {
+			BinaryCodec.writeVarLong(buf, count << 1);
+		} else {
+			BinaryCodec.writeVarLong(buf, (value.length << 1) | 1);
+			for (int i = 0; i < value.length; ++i)
+				BinaryCodec.writeVarLong(buf, value[i]);
+		}
+	}
+
+	/**
+	 * the binary form of the clock, as written by encode()
+	 */
+	public synchronized byte[] toBytes() {
+
+		ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+
+		encode(buf);
+		return buf.array();
+	}
+
+	private void decode(ByteBuffer buf) {
+
+		long header = BinaryCodec.readVarLong(buf);
+
+		if ((header & 1) == 0) {
+			count = header >>> 1;
+			value = null;
+			return;
+		}
+
+		int[] digits = new int[(int) Math.min(header >>> 1, buf.remaining())];
+
+		if (digits.length != header >>> 1 || digits.length == 0)
+			throw new IllegalArgumentException("Malformed Logical Clock");
+
+		for (int i = 0; i < digits.length; ++i) {
+			long digit = BinaryCodec.readVarLong(buf);
+			if (digit < 0 || digit > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Malformed Logical Clock");
+			digits[i] = (int) digit;
+		}
+		setDigits(digits);
+	}
+
 	/**
 	 * Parse JSON into the provided parser. The parser should be pointing at the
 	 * field name for the LogicalClock on return it points at the END_OBJECT or
@@ -136,44 +309,108 @@ public class LogicalClock extends ClockOperations implements Serializable {
 
 		jp.nextToken(); // start of Array
 
+		int[] digits = new int[1];
+
 		for (boolean first = true; jp.nextToken() != JsonToken.END_ARRAY;) {
 
 			if (!first) {
-				int[] newValue = new int[value.length + 1];
-				System.arraycopy(value, 0, newValue, 0, value.length);
-				value = newValue;
+				int[] newValue = new int[digits.length + 1];
+				System.arraycopy(digits, 0, newValue, 0, digits.length);
+				digits = newValue;
 			}
-			value[value.length - 1] = jp.getIntValue();
+			digits[digits.length - 1] = jp.getIntValue();
 			first = false;
 		}
 		jp.nextToken(); // past end array
+
+		setDigits(digits);
 	}
 
 	/**
-	 * tick the value, expanding the number of 'digits' as necessary.
+	 * Set the value from an array of 'digits', holding it as a long if it fits.
+	 * Leading zero 'digits' are dropped.
+	 */
+	private void setDigits(int[] digits) {
+
+		int start = 0;
+		while (start < digits.length - 1 && digits[start] == 0)
+			++start;
+
+		int length = digits.length - start;
+
+		if (length < 3 || (length == 3 && digits[start] <= 1)) {
+			count = 0;
+			for (int i = start; i < digits.length; ++i)
+				count = count * DIGIT_RADIX + digits[i];
+			value = null;
+		} else {
+			value = new int[length];
+			System.arraycopy(digits, start, value, 0, length);
+		}
+	}
+
+	/**
+	 * the 'digits' of a value held as a long
+	 */
+	private static int[] toDigits(long count) {
+
+		if (count < DIGIT_RADIX)
+			return new int[] { (int) count };
+		if (count < DIGIT_RADIX * DIGIT_RADIX)
+			return new int[] { (int) (count >>> 31),
+					(int) (count & Integer.MAX_VALUE) };
+		return new int[] { (int) (count >>> 62),
+				(int) ((count >>> 31) & Integer.MAX_VALUE),
+				(int) (count & Integer.MAX_VALUE) };
+	}
+
+	/**
+	 * tick the value, moving to 'digits' if it outgrows a long and expanding
+	 * the number of 'digits' as necessary.
 	 */
 	@Override
 	protected void doTick() {
 
+		if (value == null && count < Long.MAX_VALUE) {
+			++count;
+			return;
+		}
+
+		int[] digits = (value == null) ? toDigits(count) : value.clone();
 		int counter;
 
-		for (counter = value.length - 1; counter >= 0; --counter) {
+		for (counter = digits.length - 1; counter >= 0; --counter) {
 
-			if (value[counter] < java.lang.Integer.MAX_VALUE) {
+			if (digits[counter] < java.lang.Integer.MAX_VALUE) {
 				// tick the 'digit' and break out of the loop.
-				++value[counter];
+				++digits[counter];
+				value = digits;
 				return;
 			} else
 				// overflow - move on to next 'digit'
-				value[counter] = 0;
+				digits[counter] = 0;
 		}
 
 		// total overflow, add a 'digit'
-		int[] newval = new int[value.length + 1];
+		int[] newval = new int[digits.length + 1];
 		newval[0] = 1;
 		value = newval;
 	}
 
+	/**
+	 * @return true while the value is held as a long
+	 */
+	boolean fitsInLong() {
+		return value == null;
+	}
+
+	/**
+	 * the value, meaningful only while {@link #fitsInLong()}
+	 */
+	long longValue() {
+		return count;
+	}
+
 	public boolean isLessThan(LogicalClock other) {
 		return this.lessThan((ClockOperations) other);
 	}
@@ -187,18 +424,29 @@ public class LogicalClock extends ClockOperations implements Serializable {
 	@Override
 	protected boolean isLessThan(ClockOperations other) {
 
+		LogicalClock otherClock = (LogicalClock) other;
+		int[] mine = this.value;
+		int[] theirs = otherClock.value;
+
+		if (mine == null || theirs == null) {
+			// a value held in 'digits' has outgrown a long, so is the larger
+			if (mine == null && theirs == null)
+				return this.count < otherClock.count;
+			return mine == null;
+		}
+
 		boolean result = false;
 
-		if (this.value.length == ((LogicalClock) other).value.length) {
+		if (mine.length == theirs.length) {
 
 			// if lengths are the same, work from the high-value down, testing each
-			for (int counter = 0; counter < this.value.length; ++counter) {
-				if (this.value[counter] != ((LogicalClock) other).value[counter]) {
-					result = (this.value[counter] < ((LogicalClock) other).value[counter]);
+			for (int counter = 0; counter < mine.length; ++counter) {
+				if (mine[counter] != theirs[counter]) {
+					result = (mine[counter] < theirs[counter]);
 					break;
 				}
 			}
-		} else if (this.value.length < ((LogicalClock) other).value.length) {
+		} else if (mine.length < theirs.length) {
 			// if this is shorter, it's smaller
 			result = true;
 		} else {
@@ -0,0 +1,618 @@
+package org.brann.clock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+
+/**
+ * Implementation of Matrix Clocks.
+ *
+ * A MatrixClock belongs to an owner process. It holds the owner's Vector
+ * Clock, and a row for each other process: the latest value of that
+ * process's Vector Clock the owner knows of. A row is learned from the
+ * process itself, from its clock on a message merged here, or second hand,
+ * from the rows of any other process's clock merged here.
+ *
+ * An event of a process is stable once every process is known to have seen
+ * it: the process's Logical Clock in every row has reached the event's value.
+ * A stable message has been received everywhere, so a copy kept to resend it
+ * can be discarded, and a Logical Clock for the process no greater than the
+ * stable value can no longer hold a message back anywhere. The processes of
+ * the group are the owner, every process with a row and every process with a
+ * clock in the owner's vector; a process with no row is known to have seen
+ * nothing. A process that has not been heard of can be added to the group
+ * before it is, so that nothing is stable until it has seen it too.
+ *
+ * Comparison is of the owners' Vector Clocks. The rows are held in a map that
+ * is never altered once published - a merge builds a new map, sharing the
+ * rows it does not change - so readers take no lock.
+ *
+ * @author John Brann
+ * @see VectorClock
+ */
+@SuppressWarnings("serial")
+public class MatrixClock extends ClockOperations implements Serializable,
+		Cloneable {
+
+	private static final Map<String, VectorClock> NO_ROWS = Collections
+			.emptyMap();
+
+	private String owner;
+	private VectorClock mine = new VectorClock();
+	private volatile Map<String, VectorClock> rows = NO_ROWS;
+	private Set<String> removed = new HashSet<String>();
+
+	/**
+	 * Create a new matrix clock for the named process
+	 */
+	public MatrixClock(String owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Constructor to build a MatrixClock from the human-readable String created
+	 * by toString()
+	 *
+	 * @param owner
+	 *            name of the owner, if null the owner from the JSON is used
+	 * @param stringValue
+	 *            the JSON string value of the matrix clock
+	 */
+	public MatrixClock(String owner, String stringValue) {
+		this(owner, JsonCodec.parser(stringValue));
+	}
+
+	/**
+	 * Build a MatrixClock from JSON, as produced by toString() or writeJson(),
+	 * held in a byte array in UTF-8 or another Unicode encoding.
+	 *
+	 * @param owner
+	 *            name of the owner, if null the owner from the JSON is used
+	 */
+	public static MatrixClock parseJson(String owner, byte[] json) {
+		return new MatrixClock(owner, JsonCodec.parser(json, 0, json.length));
+	}
+
+	/**
+	 * Build a MatrixClock from JSON, as produced by toString() or writeJson(),
+	 * making up the remaining content of the buffer. The buffer's position is
+	 * moved to its limit.
+	 *
+	 * @param owner
+	 *            name of the owner, if null the owner from the JSON is used
+	 */
+	public static MatrixClock parseJson(String owner, ByteBuffer json) {
+		return new MatrixClock(owner, JsonCodec.parser(json));
+	}
+
+	/**
+	 * Build a MatrixClock from JSON, as produced by toString() or writeJson(),
+	 * read from the stream. The stream is left open.
+	 *
+	 * @param owner
+	 *            name of the owner, if null the owner from the JSON is used
+	 */
+	public static MatrixClock parseJson(String owner, InputStream json) {
+		return new MatrixClock(owner, JsonCodec.parser(json));
+	}
+
+	/**
+	 * build from a parser for the JSON. A null parser, or bad JSON, gives an
+	 * empty clock.
+	 */
+	private MatrixClock(String owner, JsonParser jp) {
+
+		try {
+			if (jp != null) {
+				jp.nextToken(); // move to start object
+				jp.nextToken(); // move past start object
+				fromJson(jp);
+				jp.close();
+			}
+		} catch (IOException e) {
+			// swallow the exception,
+			// set clock empty - failed to build it.
+			mine = new VectorClock();
+			rows = NO_ROWS;
+		}
+		own(owner);
+	}
+
+	/**
+	 * Constructor to build a MatrixClock from the binary form written by
+	 * encode(). The buffer's position is moved past the clock.
+	 *
+	 * @param owner
+	 *            name of the owner, if null the owner from the encoded clock
+	 *            is used
+	 * @param encoded
+	 *            the binary form of the matrix clock
+	 */
+	public MatrixClock(String owner, ByteBuffer encoded) {
+
+		try {
+			decode(encoded);
+		} catch (BufferUnderflowException e) {
+			// set clock empty - failed to build it.
+			mine = new VectorClock();
+			rows = NO_ROWS;
+		} catch (IllegalArgumentException e) {
+			mine = new VectorClock();
+			rows = NO_ROWS;
+		}
+		own(owner);
+	}
+
+	/**
+	 * correct the ownership of a clock read for another owner: the vector read
+	 * becomes the row for the process that wrote it, and the new owner's
+	 * vector starts empty
+	 */
+	private void own(String name) {
+
+		if (name == null || name.equals(owner))
+			return;
+
+		Map<String, VectorClock> others = new HashMap<String, VectorClock>(rows);
+
+		others.remove(name);
+		if (owner != null)
+			others.put(owner, mine);
+		owner = name;
+		mine = new VectorClock();
+		rows = others;
+	}
+
+	protected void fromJson(JsonParser jp) throws IOException {
+
+		expect(jp, TextConstants.OWNER_PROCESS_ID);
+		jp.nextToken();
+		owner = jp.getText();
+
+		jp.nextToken();
+		mine.fromJson(jp);
+
+		expect(jp, TextConstants.MATRIX_CLOCK);
+		jp.nextToken(); // start of Array
+
+		Map<String, VectorClock> parsed = new HashMap<String, VectorClock>();
+
+		while (jp.nextToken() != JsonToken.END_ARRAY) {
+
+			jp.nextToken(); // past start object
+			expect(jp, TextConstants.PROCESS_ID);
+			jp.nextToken(); // to process name
+			String pid = jp.getValueAsString();
+
+			jp.nextToken();
+			VectorClock row = new VectorClock();
+			row.fromJson(jp);
+			parsed.put(pid, row);
+		}
+		rows = parsed;
+	}
+
+	private static void expect(JsonParser jp, String field) throws IOException {
+
+		if (jp.getCurrentName().compareTo(field) != 0)
+			throw new JsonParseException("Unexpected field name: "
+					+ jp.getCurrentName() + " should be: " + field,
+					jp.getCurrentLocation());
+	}
+
+	/**
+	 * @return the name of the process owning this clock
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * @return a copy of the owner's Vector Clock
+	 */
+	public VectorClock getVector() {
+		return (VectorClock) mine.clone();
+	}
+
+	/**
+	 * @return a copy of the latest value of the named process's Vector Clock
+	 *         known to the owner - empty if nothing is known of it
+	 */
+	public VectorClock vectorOf(String process) {
+
+		if (process.equals(owner))
+			return getVector();
+
+		VectorClock row = rows.get(process);
+
+		return row == null ? new VectorClock() : (VectorClock) row.clone();
+	}
+
+	/**
+	 * @return the value of one process's Logical Clock in the latest value of
+	 *         another's Vector Clock known to the owner, zero if it is absent
+	 * @param process
+	 *            the process whose Vector Clock is read
+	 * @param about
+	 *            the process whose Logical Clock is wanted
+	 */
+	public long countFor(String process, String about) {
+
+		VectorClock row = process.equals(owner) ? mine : rows.get(process);
+
+		return row == null ? 0 : row.countFor(about);
+	}
+
+	/**
+	 * Add a process to the group, with an empty row if nothing is known of it
+	 */
+	public synchronized void addProcess(String process) {
+
+		removed.remove(process);
+		if (process.equals(owner) || rows.containsKey(process))
+			return;
+
+		Map<String, VectorClock> added = new HashMap<String, VectorClock>(rows);
+
+		added.put(process, new VectorClock());
+		rows = added;
+	}
+
+	/**
+	 * Drop a process that has left the group, with its row and its Logical
+	 * Clock in the owner's vector and in every row, so that stability no
+	 * longer waits on it. Clocks merged afterwards may still know of the
+	 * process; its row and Logical Clocks in them are ignored until it is
+	 * added again. The
+	 * processes removed are not kept in the JSON or binary forms.
+	 */
+	public synchronized void removeProcess(String process) {
+
+		Map<String, VectorClock> without = new HashMap<String, VectorClock>(rows);
+
+		without.remove(process);
+		for (Map.Entry<String, VectorClock> entry : without.entrySet())
+			entry.setValue(entry.getValue().without(process));
+		rows = without;
+		mine.clearClockFor(process);
+		removed.add(process);
+	}
+
+	/**
+	 * a received vector without the Logical Clocks of the processes removed
+	 */
+	private VectorClock withoutRemoved(VectorClock vector) {
+
+		for (String process : removed)
+			vector = vector.without(process);
+		return vector;
+	}
+
+	/**
+	 * Update this clock with a clock received from another process, usually on
+	 * a message. The owner's vector is merged with the sender's, the row for
+	 * the sender becomes the sender's vector, and every row the sender knows
+	 * of is merged with the row held here. The owner's clock is not ticked.
+	 * Processes removed from the group are left out.
+	 */
+	public synchronized void merge(MatrixClock received) {
+
+		Map<String, VectorClock> theirs = received.rows;
+		VectorClock theirVector = withoutRemoved(received.mine);
+		Map<String, VectorClock> merged = new HashMap<String, VectorClock>(rows);
+
+		mine.merge(theirVector);
+		if (!received.owner.equals(owner) && !removed.contains(received.owner))
+			mergeRow(merged, received.owner, theirVector);
+		for (Map.Entry<String, VectorClock> entry : theirs.entrySet()) {
+			if (!entry.getKey().equals(owner) && !removed.contains(entry.getKey()))
+				mergeRow(merged, entry.getKey(), withoutRemoved(entry.getValue()));
+		}
+		rows = merged;
+	}
+
+	/**
+	 * merge a row into a map being built. A row is replaced, not updated in
+	 * place, as it may be shared.
+	 */
+	private static void mergeRow(Map<String, VectorClock> merged,
+			String process, VectorClock row) {
+
+		VectorClock held = merged.get(process);
+
+		if (held == null) {
+			merged.put(process, (VectorClock) row.clone());
+		} else if (row.greaterEntry(held) != null) {
+			VectorClock updated = (VectorClock) held.clone();
+
+			updated.merge(row);
+			merged.put(process, updated);
+		}
+	}
+
+	/**
+	 * The stable value of the named process's Logical Clock: the least value
+	 * of it known to every process in the group. Every event of the process up
+	 * to this value has been seen everywhere.
+	 */
+	public long stableCount(String process) {
+
+		Map<String, VectorClock> known = rows;
+		VectorClock vector = mine;
+		long stable = vector.countFor(process);
+
+		for (VectorClock row : known.values())
+			stable = Math.min(stable, row.countFor(process));
+
+		for (String member : vector.processes()) {
+			if (!member.equals(owner) && !known.containsKey(member))
+				return 0;
+		}
+		return stable;
+	}
+
+	/**
+	 * @return true if the event with the given value of the named process's
+	 *         Logical Clock - a message it sent, say - has been seen by every
+	 *         process in the group
+	 */
+	public boolean isStable(String process, long count) {
+		return count <= stableCount(process);
+	}
+
+	/**
+	 * The stable value of every process's Logical Clock, as a Vector Clock.
+	 * Logical Clocks that are not yet stable anywhere are absent.
+	 *
+	 * @see #stableCount(String)
+	 */
+	public VectorClock stable() {
+
+		VectorClock stable = new VectorClock();
+
+		for (String process : mine.processes()) {
+
+			long count = stableCount(process);
+
+			if (count != 0)
+				stable.setClockFor(process, new LogicalClock(count));
+		}
+		return stable;
+	}
+
+	/**
+	 * Logical Relation. This MatrixClock is less than the parameter if the
+	 * owner's Vector Clock is less than the parameter owner's.
+	 *
+	 * @see VectorClock#lessThan(VectorClock)
+	 */
+	public boolean lessThan(MatrixClock other) {
+		return this.lessThan((ClockOperations) other);
+	}
+
+	@Override
+	protected boolean isLessThan(ClockOperations other) {
+		return mine.lessThan(((MatrixClock) other).mine);
+	}
+
+	/**
+	 * Increment the owner's Logical Clock in its vector
+	 */
+	@Override
+	protected void doTick() {
+		mine.tick(owner);
+	}
+
+	/**
+	 * Create a new, separate copy of the Matrix Clock, identical to the
+	 * original. The copy shares the original's rows until either is updated.
+	 */
+	@Override
+	public synchronized Object clone() {
+
+		MatrixClock temp = new MatrixClock(owner);
+
+		temp.mine = (VectorClock) mine.clone();
+		temp.rows = rows;
+		temp.removed = new HashSet<String>(removed);
+		return temp;
+	}
+
+	/**
+	 * the rows, ordered by process name
+	 */
+	private static Map<String, VectorClock> sorted(Map<String, VectorClock> rows) {
+		return new TreeMap<String, VectorClock>(rows);
+	}
+
+	/**
+	 * create JSON in the provided JsonGenerator. Does not write the start or
+	 * end object.
+	 */
+	protected synchronized void toJson(JsonGenerator jg)
+			throws JsonGenerationException, IOException {
+
+		jg.writeStringField(TextConstants.OWNER_PROCESS_ID, owner);
+		mine.toJson(jg);
+
+		jg.writeArrayFieldStart(TextConstants.MATRIX_CLOCK);
+		for (Map.Entry<String, VectorClock> entry : sorted(rows).entrySet()) {
+
+			jg.writeStartObject();
+			jg.writeStringField(TextConstants.PROCESS_ID, entry.getKey());
+			entry.getValue().toJson(jg);
+			jg.writeEndObject();
+		}
+		jg.writeEndArray();
+	}
+
+	/**
+	 * provide human and computer-readable JSON output. format is:
+	 * {"O_PID":<owner>,"VC":[...],"MC":[{"PID":<process id>,"VC":[...]},...]}
+	 */
+	@Override
+	public synchronized String toString() {
+
+		StringWriter sw = new StringWriter();
+
+		try {
+			JsonGenerator jg = JsonCodec.generator(sw);
+			jg.setPrettyPrinter(new DefaultPrettyPrinter());
+
+			jg.writeStartObject();
+
+			toJson(jg);
+
+			jg.writeEndObject();
+			jg.flush();
+			jg.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return sw.toString();
+	}
+
+
+	/**
+	 * the dictionary of every process named in this clock
+	 */
+	private BinaryCodec.Dictionary dictionary(Map<String, VectorClock> known) {
+
+		BinaryCodec.Dictionary dict = new BinaryCodec.Dictionary();
+
+		dict.add(owner);
+		mine.addTo(dict);
+		for (Map.Entry<String, VectorClock> entry : known.entrySet()) {
+			dict.add(entry.getKey());
+			entry.getValue().addTo(dict);
+		}
+		return dict;
+	}
+
+	private int encodedLength(BinaryCodec.Dictionary dict,
+			Map<String, VectorClock> known) {
+
+		int length = 1 + dict.encodedLength()
+				+ BinaryCodec.varLongLength(dict.positionOf(owner))
+				+ mine.encodedLength(dict)
+				+ BinaryCodec.varLongLength(known.size());
+
+		for (Map.Entry<String, VectorClock> entry : known.entrySet()) {
+			length += BinaryCodec.varLongLength(dict.positionOf(entry.getKey()))
+					+ entry.getValue().encodedLength(dict);
+		}
+		return length;
+	}
+
+	private void encode(ByteBuffer buf, BinaryCodec.Dictionary dict,
+			Map<String, VectorClock> known) {
+
+		buf.put(BinaryCodec.MATRIX_CLOCK);
+		dict.encode(buf);
+		BinaryCodec.writeVarLong(buf, dict.positionOf(owner));
+		mine.encode(buf, dict);
+
+		BinaryCodec.writeVarLong(buf, known.size());
+		for (Map.Entry<String, VectorClock> entry : known.entrySet()) {
+			BinaryCodec.writeVarLong(buf, dict.positionOf(entry.getKey()));
+			entry.getValue().encode(buf, dict);
+		}
+	}
+
+	/**
+	 * the length of the binary form written by encode()
+	 */
+	public synchronized int encodedLength() {
+
+		Map<String, VectorClock> known = rows;
+
+		return encodedLength(dictionary(known), known);
+	}
+
+	/**
+	 * Write the compact binary form of this clock: a dictionary of every
+	 * process named, then the owner, the owner's vector and the rows, each
+	 * referring to processes by dictionary position.
+	 *
+	 * @throws java.nio.BufferOverflowException
+	 *             if the buffer has less than encodedLength() remaining
+	 */
+	public synchronized void encode(ByteBuffer buf) {
+
+		Map<String, VectorClock> known = rows;
+
+		encode(buf, dictionary(known), known);
+	}
+
+	/**
+	 * the binary form of this clock, as written by encode()
+	 */
+	public synchronized byte[] toBytes() {
+
+		Map<String, VectorClock> known = rows;
+		BinaryCodec.Dictionary dict = dictionary(known);
+		ByteBuffer buf = ByteBuffer.allocate(encodedLength(dict, known));
+
+		encode(buf, dict, known);
+		return buf.array();
+	}
+
+	private void decode(ByteBuffer buf) {
+
+		BinaryCodec.expect(buf, BinaryCodec.MATRIX_CLOCK);
+
+		String[] names = BinaryCodec.Dictionary.decode(buf);
+		int ownerPosition = BinaryCodec.readVarInt(buf);
+
+		if (ownerPosition >= names.length)
+			throw new IllegalArgumentException("Unknown owner: "
+					+ ownerPosition);
+
+		long[] values = VectorClock.decode(buf, names.length);
+		int clocks = BinaryCodec.readLength(buf);
+		int[] positions = new int[clocks];
+		long[][] rowValues = new long[clocks][];
+
+		for (int i = 0; i < clocks; ++i) {
+
+			positions[i] = BinaryCodec.readVarInt(buf);
+
+			if (positions[i] >= names.length)
+				throw new IllegalArgumentException("Unknown process: "
+						+ positions[i]);
+			rowValues[i] = VectorClock.decode(buf, names.length);
+		}
+
+		// the whole clock has been read: only now register its names
+		int[] ids = BinaryCodec.Dictionary.ids(names);
+		Map<String, VectorClock> decoded = new HashMap<String, VectorClock>();
+
+		owner = names[ownerPosition];
+		mine.resolve(values, ids);
+		for (int i = 0; i < clocks; ++i) {
+
+			VectorClock row = new VectorClock();
+
+			row.resolve(rowValues[i], ids);
+			decoded.put(names[positions[i]], row);
+		}
+		rows = decoded;
+	}
+}
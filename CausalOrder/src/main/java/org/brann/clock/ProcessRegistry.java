@@ -0,0 +1,83 @@
+package org.brann.clock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dictionary of process ids. Each process name is given a small integer index
+ * the first time it is seen, and keeps it for the life of the JVM. Vector
+ * Clocks use the index to address their entries, so that clock operations do
+ * not need to look up or compare process names.
+ *
+ * The indices are local to this JVM - they are never written to JSON or
+ * serialized.
+ *
+ * An index is never released: any clock in the JVM may still hold an entry
+ * for it, and nothing records which do, so it cannot safely be given to
+ * another name. The registry, and the length of a clock's array of values,
+ * therefore grow with every process name the JVM has seen, including those
+ * that have retired from a group. A clock drops the trailing entries it no
+ * longer uses when they are cleared, so a clock is only as long as its
+ * highest non-zero entry, but a long-running JVM meeting an unbounded number
+ * of process names should use IntervalTreeClock, which names no process.
+ *
+ * @author John Brann
+ */
+final class ProcessRegistry {
+
+	private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	private static volatile String[] names = new String[16];
+
+	private static int size = 0;
+
+	private ProcessRegistry() {
+	}
+
+	/**
+	 * the index for the named process, assigning one if the name is new
+	 */
+	static int idOf(String name) {
+
+		Integer id = ids.get(name);
+
+		return (id != null) ? id.intValue() : register(name);
+	}
+
+	/**
+	 * the index for the named process
+	 * 
+	 * @return the index, or -1 if the name has never been registered
+	 */
+	static int lookup(String name) {
+
+		Integer id = ids.get(name);
+
+		return (id != null) ? id.intValue() : -1;
+	}
+
+	/**
+	 * the process name with the given index
+	 */
+	static String nameOf(int id) {
+		return names[id];
+	}
+
+	private static synchronized int register(String name) {
+
+		Integer id = ids.get(name);
+
+		if (id != null)
+			return id.intValue();
+
+		if (size == names.length) {
+			String[] newNames = new String[size * 2];
+			System.arraycopy(names, 0, newNames, 0, size);
+			names = newNames;
+		}
+		// the name is in place before the index can be seen through ids
+		names[size] = name;
+		ids.put(name, Integer.valueOf(size));
+		return size++;
+	}
+}
@@ -9,4 +9,7 @@ public final class TextConstants {
 	public static final String OWNER_PROCESS_ID = "O_PID";
 	public static final String PROCESS_ID = "PID";
 	public static final String FOREIGN_CLOCKS = "FC";
+	public static final String MATRIX_CLOCK = "MC";
+	public static final String IDENTITY = "ID";
+	public static final String EVENT_TREE = "EV";
 }
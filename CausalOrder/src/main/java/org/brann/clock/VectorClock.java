@@ -1,13 +1,15 @@
 package org.brann.clock;
 
-import java.util.HashMap;
-import java.util.TreeMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -23,6 +25,16 @@ import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
  * A VectorClock is a set of name/value pairs where the name identifies a
  * process in a distributed environment and the value is a LogicalClock.
  *
+ * The values are held in an array of longs, indexed by the process's entry in
+ * the {@link ProcessRegistry}. A process that is absent from the vector has the
+ * value zero. A Logical Clock that has outgrown a long cannot be held in a
+ * Vector Clock: ticking a value of Long.MAX_VALUE, or setting or parsing a
+ * larger one, fails rather than wrap.
+ *
+ * An array of values is never altered once published: each update builds a
+ * new array. Readers, including comparisons, take no lock and see the whole
+ * vector as it was at a single update. Clones share the array.
+ *
  * @author John Brann
  * @see LogicalClock
  * @type Product Requirement
@@ -33,9 +45,14 @@ public class VectorClock extends ClockOperations implements Serializable,
 		Cloneable {
 
 	static final LogicalClock zero = new LogicalClock();
-	private Map<String, LogicalClock> clocks = new TreeMap<String, LogicalClock>();
+	private static final long[] EMPTY = new long[0];
 
-	protected VectorClock() { // used in clone()
+	private transient volatile long[] counts = EMPTY;
+
+	/**
+	 * Create an empty Vector Clock: every Logical Clock is zero
+	 */
+	public VectorClock() {
 
 	}
 
@@ -51,7 +68,9 @@ public class VectorClock extends ClockOperations implements Serializable,
 	 */
 	protected void fromJson(JsonParser jp) throws IOException {
 
-		clocks = new HashMap<String, LogicalClock>();
+		long[] parsed = EMPTY;
+
+		counts = EMPTY;
 
 		if (jp.getCurrentName().compareTo(TextConstants.VECTOR_CLOCK) != 0)
 			throw new JsonParseException("Unexpected field name: "
@@ -73,10 +92,16 @@ public class VectorClock extends ClockOperations implements Serializable,
 			jp.nextToken();
 			LogicalClock tempClock = new LogicalClock();
 			tempClock.fromJson(jp);
-			clocks.put(pid, tempClock);
-			// jp.nextToken(); // past end object
+
+			if (!tempClock.fitsInLong())
+				throw new JsonParseException("Logical Clock for " + pid
+						+ " is out of range", jp.getCurrentLocation());
+
+			parsed = put(parsed, ProcessRegistry.idOf(pid),
+					tempClock.longValue());
 		}
 		jp.nextToken(); // past the end-array
+		counts = parsed;
 
 	}
 
@@ -90,9 +115,55 @@ public class VectorClock extends ClockOperations implements Serializable,
 	 */
 	public VectorClock(String stringValue) {
 
-		try {
-			JsonParser jp = new JsonFactory().createParser(stringValue);
+		readJson(JsonCodec.parser(stringValue));
+	}
+
+	/**
+	 * Build a VectorClock from JSON, as produced by toString() or writeJson(),
+	 * held in a byte array in UTF-8 or another Unicode encoding. The bytes are
+	 * parsed directly, without decoding them to a String.
+	 */
+	public static VectorClock parseJson(byte[] json) {
+		VectorClock clock = new VectorClock();
+
+		clock.readJson(JsonCodec.parser(json, 0, json.length));
+		return clock;
+	}
 
+	/**
+	 * Build a VectorClock from JSON, as produced by toString() or writeJson(),
+	 * making up the remaining content of the buffer. A heap buffer is parsed
+	 * in place and a direct buffer is read without copying it whole. The
+	 * buffer's position is moved to its limit.
+	 */
+	public static VectorClock parseJson(ByteBuffer json) {
+		VectorClock clock = new VectorClock();
+
+		clock.readJson(JsonCodec.parser(json));
+		return clock;
+	}
+
+	/**
+	 * Build a VectorClock from JSON, as produced by toString() or writeJson(),
+	 * read from the stream. The stream is left open.
+	 */
+	public static VectorClock parseJson(InputStream json) {
+		VectorClock clock = new VectorClock();
+
+		clock.readJson(JsonCodec.parser(json));
+		return clock;
+	}
+
+	/**
+	 * read a complete JSON object - the clock is left empty if the parser is
+	 * null or the JSON is bad
+	 */
+	private void readJson(JsonParser jp) {
+
+		if (jp == null)
+			return;
+
+		try {
 			jp.nextToken(); // move to start object
 			jp.nextToken(); // move past start object
 
@@ -102,7 +173,31 @@ public class VectorClock extends ClockOperations implements Serializable,
 		} catch (IOException e) {
 			// swallow the exception,
 			// set clock empty - failed to build it.
-			clocks = new TreeMap<String, LogicalClock>();
+			counts = EMPTY;
+		}
+	}
+
+	/**
+	 * Constructor to build a VectorClock from the binary form written by
+	 * encode(). The buffer's position is moved past the clock.
+	 * 
+	 * @param encoded
+	 *            the binary form of the vector clock
+	 */
+	public VectorClock(ByteBuffer encoded) {
+
+		try {
+			BinaryCodec.expect(encoded, BinaryCodec.VECTOR_CLOCK);
+
+			String[] names = BinaryCodec.Dictionary.decode(encoded);
+			long[] values = decode(encoded, names.length);
+
+			resolve(values, BinaryCodec.Dictionary.ids(names));
+		} catch (BufferUnderflowException e) {
+			// set clock empty - failed to build it.
+			counts = EMPTY;
+		} catch (IllegalArgumentException e) {
+			counts = EMPTY;
 		}
 	}
 
@@ -117,21 +212,386 @@ public class VectorClock extends ClockOperations implements Serializable,
 
 	public synchronized void merge(VectorClock other) {
 
-		for (String nm : other.clocks.keySet()) {
+		long[] mine = counts;
+		long[] theirs = other.counts;
+		long[] merged = null;
+
+		for (int i = 0; i < theirs.length; ++i) {
+
+			if (at(mine, i) < theirs[i]) {
+				if (merged == null)
+					merged = Arrays.copyOf(mine,
+							Math.max(mine.length, theirs.length));
+				merged[i] = theirs[i];
+			}
+		}
+		if (merged != null)
+			counts = merged;
+	}
+
+	/**
+	 * set every Logical Clock in this vector to zero
+	 */
+	synchronized void clear() {
+		counts = EMPTY;
+	}
+
+	/**
+	 * the entries of this vector that are greater than their counterparts in
+	 * an earlier value of it. Merging the result into the earlier value
+	 * reproduces this one.
+	 * 
+	 * @param previous
+	 *            the earlier value, or null for a copy of the whole vector
+	 */
+	VectorClock deltaFrom(VectorClock previous) {
+
+		long[] mine = counts;
+		VectorClock delta = new VectorClock();
+
+		if (previous == null) {
+			delta.counts = mine;
+			return delta;
+		}
+
+		long[] before = previous.counts;
+		long[] changed = EMPTY;
+
+		for (int i = mine.length - 1; i >= 0; --i) {
+			if (mine[i] > at(before, i))
+				changed = put(changed, i, mine[i]);
+		}
+		delta.counts = changed;
+		return delta;
+	}
+
+	/**
+	 * @return true if every Logical Clock in this vector is zero
+	 */
+	boolean isEmpty() {
+
+		long[] mine = counts;
+
+		for (int i = 0; i < mine.length; ++i)
+			if (mine[i] != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Find a process whose Logical Clock in this vector is greater than its
+	 * counterpart in the argument vector. A missing clock has the value zero.
+	 * 
+	 * @return the name of the process, or null if there is none
+	 */
+	String greaterEntry(VectorClock other) {
+
+		long[] mine = counts;
+		long[] theirs = other.counts;
+
+		for (int i = 0; i < mine.length; ++i) {
 
-			if (!clocks.containsKey(nm)
-					|| clocks.get(nm).isLessThan(other.clocks.get(nm))) {
-				clocks.put(nm, new LogicalClock(other.clocks.get(nm)));
+			if (mine[i] > at(theirs, i))
+				return ProcessRegistry.nameOf(i);
+		}
+		return null;
+	}
+
+	/**
+	 * This vector without the Logical Clocks that are no greater than their
+	 * counterparts in the argument vector.
+	 * 
+	 * @return this vector if no clock is removed, else a new vector - empty if
+	 *         every clock is removed
+	 */
+	VectorClock without(VectorClock known) {
+
+		long[] mine = counts;
+		long[] theirs = known.counts;
+		long[] kept = null;
+
+		for (int i = 0; i < mine.length; ++i) {
+			if (mine[i] != 0 && mine[i] <= at(theirs, i)) {
+				if (kept == null)
+					kept = mine.clone();
+				kept[i] = 0;
 			}
 		}
+		if (kept == null)
+			return this;
+
+		VectorClock pruned = new VectorClock();
+
+		pruned.counts = trim(kept);
+		return pruned;
 	}
 
-	protected synchronized LogicalClock clockFor(String name) {
-		return (LogicalClock) clocks.get(name);
+	/**
+	 * This vector without the named process's Logical Clock
+	 * 
+	 * @return this vector if it has no clock for the process, else a new vector
+	 */
+	VectorClock without(String name) {
+
+		long[] mine = counts;
+		int id = ProcessRegistry.lookup(name);
+
+		if (at(mine, id) == 0)
+			return this;
+
+		VectorClock pruned = new VectorClock();
+
+		pruned.counts = trim(put(mine.clone(), id, 0));
+		return pruned;
 	}
 
+	/**
+	 * Drop the named process's Logical Clock from this vector
+	 */
+	synchronized void clearClockFor(String name) {
+
+		int id = ProcessRegistry.lookup(name);
+
+		if (at(counts, id) != 0) {
+			set(id, 0);
+			counts = trim(counts);
+		}
+	}
+
+	/**
+	 * the names of the processes with a non-zero clock in this vector, in
+	 * order
+	 */
+	String[] processes() {
+		return processNames(counts);
+	}
+
+	/**
+	 * the value of the named process's Logical Clock, zero if it is absent
+	 */
+	public long countFor(String name) {
+		return at(counts, ProcessRegistry.lookup(name));
+	}
+
+	protected LogicalClock clockFor(String name) {
+
+		long count = at(counts, ProcessRegistry.lookup(name));
+
+		return (count == 0) ? null : new LogicalClock(count);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the Logical Clock has outgrown a long
+	 */
 	protected synchronized void setClockFor(String name, LogicalClock clock) {
-		clocks.put(name, new LogicalClock(clock));
+
+		if (!clock.fitsInLong())
+			throw new IllegalArgumentException("Logical Clock for " + name
+					+ " is out of range");
+		set(ProcessRegistry.idOf(name), clock.longValue());
+	}
+
+	private static long at(long[] values, int id) {
+		return (id >= 0 && id < values.length) ? values[id] : 0;
+	}
+
+	/**
+	 * store a value in an array that has not been published, growing it if
+	 * necessary
+	 */
+	private static long[] put(long[] values, int id, long count) {
+
+		if (id >= values.length)
+			values = Arrays.copyOf(values, id + 1);
+		values[id] = count;
+		return values;
+	}
+
+	/**
+	 * drop the trailing zero values from an array that has not been published,
+	 * so that a clock whose highest entries have been cleared does not go on
+	 * copying them with every update
+	 */
+	private static long[] trim(long[] values) {
+
+		int length = values.length;
+
+		while (length > 0 && values[length - 1] == 0)
+			--length;
+		return length == values.length ? values
+				: (length == 0 ? EMPTY : Arrays.copyOf(values, length));
+	}
+
+	/**
+	 * publish a copy of the vector with one value changed. Callers hold the
+	 * lock.
+	 */
+	private void set(int id, long count) {
+
+		long[] current = counts;
+
+		counts = put(id < current.length ? current.clone() : current, id, count);
+	}
+
+	/**
+	 * the names of the processes with a non-zero clock in the values, in order
+	 */
+	private static String[] processNames(long[] values) {
+
+		int present = 0;
+
+		for (int i = 0; i < values.length; ++i)
+			if (values[i] != 0)
+				++present;
+
+		String[] names = new String[present];
+
+		for (int i = 0, n = 0; i < values.length; ++i)
+			if (values[i] != 0)
+				names[n++] = ProcessRegistry.nameOf(i);
+
+		Arrays.sort(names);
+		return names;
+	}
+
+	/**
+	 * add the processes in this vector to a dictionary being built for an
+	 * encoding
+	 */
+	void addTo(BinaryCodec.Dictionary dict) {
+
+		long[] mine = counts;
+
+		for (int i = 0; i < mine.length; ++i)
+			if (mine[i] != 0)
+				dict.add(i);
+	}
+
+	/**
+	 * the length of the section written by encode(ByteBuffer, Dictionary)
+	 */
+	int encodedLength(BinaryCodec.Dictionary dict) {
+
+		long[] mine = counts;
+		int entries = 0;
+		int length = 0;
+
+		for (int i = 0; i < mine.length; ++i) {
+			if (mine[i] != 0) {
+				++entries;
+				length += BinaryCodec.varLongLength(dict.positionOf(i))
+						+ BinaryCodec.varLongLength(mine[i]);
+			}
+		}
+		return BinaryCodec.varLongLength(entries) + length;
+	}
+
+	/**
+	 * write this vector as a section of a larger encoding: the count of
+	 * entries, then the dictionary position and value of each
+	 */
+	void encode(ByteBuffer buf, BinaryCodec.Dictionary dict) {
+
+		long[] mine = counts;
+		int entries = 0;
+
+		for (int i = 0; i < mine.length; ++i)
+			if (mine[i] != 0)
+				++entries;
+
+		BinaryCodec.writeVarLong(buf, entries);
+		for (int i = 0; i < mine.length; ++i) {
+			if (mine[i] != 0) {
+				BinaryCodec.writeVarLong(buf, dict.positionOf(i));
+				BinaryCodec.writeVarLong(buf, mine[i]);
+			}
+		}
+	}
+
+	/**
+	 * read a section written by encode(ByteBuffer, Dictionary). Nothing is
+	 * registered until the values are resolved.
+	 * 
+	 * @param positions
+	 *            the number of names in the dictionary
+	 * @return the values, indexed by dictionary position
+	 * @see #resolve(long[], int[])
+	 */
+	static long[] decode(ByteBuffer buf, int positions) {
+
+		long[] values = new long[positions];
+
+		for (int entries = BinaryCodec.readLength(buf); entries > 0; --entries) {
+
+			int position = BinaryCodec.readVarInt(buf);
+
+			if (position >= positions)
+				throw new IllegalArgumentException("Unknown process: " + position);
+			values[position] = BinaryCodec.readCount(buf);
+		}
+		return values;
+	}
+
+	/**
+	 * set this vector from a section read by decode(ByteBuffer, int)
+	 * 
+	 * @param ids
+	 *            the registry index for each dictionary position
+	 */
+	void resolve(long[] values, int[] ids) {
+
+		long[] parsed = EMPTY;
+
+		for (int i = 0; i < values.length; ++i)
+			if (values[i] != 0)
+				parsed = put(parsed, ids[i], values[i]);
+		counts = parsed;
+	}
+
+	/**
+	 * the length of the binary form written by encode()
+	 */
+	public synchronized int encodedLength() {
+
+		BinaryCodec.Dictionary dict = new BinaryCodec.Dictionary();
+
+		addTo(dict);
+		return 1 + dict.encodedLength() + encodedLength(dict);
+	}
+
+	/**
+	 * Write the binary form of the vector: a dictionary of the process names
+	 * followed by the entries.
+	 * 
+	 * @throws java.nio.BufferOverflowException
+	 *             if the buffer has less than encodedLength() remaining
+	 */
+	public synchronized void encode(ByteBuffer buf) {
+
+		BinaryCodec.Dictionary dict = new BinaryCodec.Dictionary();
+
+		addTo(dict);
+		buf.put(BinaryCodec.VECTOR_CLOCK);
+		dict.encode(buf);
+		encode(buf, dict);
+	}
+
+	/**
+	 * the binary form of the vector, as written by encode()
+	 */
+	public synchronized byte[] toBytes() {
+
+		BinaryCodec.Dictionary dict = new BinaryCodec.Dictionary();
+
+		addTo(dict);
+
+		ByteBuffer buf = ByteBuffer.allocate(1 + dict.encodedLength()
+				+ encodedLength(dict));
+
+		buf.put(BinaryCodec.VECTOR_CLOCK);
+		dict.encode(buf);
+		encode(buf, dict);
+		return buf.array();
 	}
 
 	/**
@@ -144,13 +604,15 @@ public class VectorClock extends ClockOperations implements Serializable,
 	protected void toJson(JsonGenerator jg) throws JsonGenerationException,
 			IOException {
 
+		long[] mine = counts;
+
 		jg.writeArrayFieldStart(TextConstants.VECTOR_CLOCK);
 
-		for (String pid : clocks.keySet()) {
+		for (String pid : processNames(mine)) {
 
 			jg.writeStartObject();
 			jg.writeStringField(TextConstants.PROCESS_ID, pid);
-			clocks.get(pid).toJson(jg);
+			LogicalClock.toJson(jg, mine[ProcessRegistry.lookup(pid)]);
 			jg.writeEndObject();
 		}
 		jg.writeEndArray();
@@ -168,7 +630,7 @@ public class VectorClock extends ClockOperations implements Serializable,
 		StringWriter sw = new StringWriter();
 
 		try {
-			JsonGenerator jg = new JsonFactory().createGenerator(sw);
+			JsonGenerator jg = JsonCodec.generator(sw);
 			jg.setPrettyPrinter(new DefaultPrettyPrinter());
 
 			jg.writeStartObject();
@@ -185,19 +647,17 @@ public class VectorClock extends ClockOperations implements Serializable,
 		return sw.toString();
 	}
 
+
 	/**
 	 * Create a new, separate copy of the Vector Clock, identical to the
-	 * original
+	 * original. The copy shares the original's values until either is updated.
 	 */
 	@Override
 	public Object clone() {
 
 		VectorClock temp = new VectorClock();
 
-		for (String wknm : this.clocks.keySet()) {
-
-			temp.clocks.put(wknm, new LogicalClock(this.clocks.get(wknm)));
-		}
+		temp.counts = counts;
 		return temp;
 	}
 
@@ -221,6 +681,41 @@ public class VectorClock extends ClockOperations implements Serializable,
 		return this.lessThan((ClockOperations) other);
 	}
 
+	/**
+	 * This VectorClock is less than or equal to the parameter VectorClock if no
+	 * LogicalClock in this vector is greater than the corresponding
+	 * LogicalClock in the other vector. A missing key has the value zero.
+	 * 
+	 * @return true if this is less than or equal to the parameter
+	 */
+	public boolean lessThanOrEqual(VectorClock other) {
+		return greaterEntry(other) == null;
+	}
+
+	/**
+	 * This VectorClock is the next event of the named process after the
+	 * parameter if the process's LogicalClock is one greater than its
+	 * counterpart, and no other LogicalClock in this vector is greater than
+	 * its counterpart. A missing key has the value zero.
+	 * 
+	 * @return true if this is the process's next event after the parameter
+	 */
+	public boolean isNextFrom(String process, VectorClock other) {
+
+		long[] mine = counts;
+		long[] theirs = other.counts;
+		int id = ProcessRegistry.lookup(process);
+
+		if (at(mine, id) != at(theirs, id) + 1)
+			return false;
+		for (int i = 0; i < mine.length; ++i) {
+
+			if (i != id && mine[i] > at(theirs, i))
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Determine if the argument Vectore Clock is "Less than" this one
 	 * 
@@ -234,49 +729,21 @@ public class VectorClock extends ClockOperations implements Serializable,
 	@Override
 	protected boolean isLessThan(ClockOperations other) {
 
-		LogicalClock wk;
-		LogicalClock otherWk;
+		long[] mine = counts;
+		long[] theirs = ((VectorClock) other).counts;
 		boolean lessThan = false;
 
-		for (String nm : clocks.keySet()) {
+		for (int i = 0; i < Math.max(mine.length, theirs.length); ++i) {
 
-			wk = clocks.get(nm);
-			otherWk = ((VectorClock) other).clocks.get(nm);
+			long wk = (i < mine.length) ? mine[i] : 0;
+			long otherWk = (i < theirs.length) ? theirs[i] : 0;
 
-			if (otherWk != null) { // present in Compare clock
-
-				// If the foreign key is less than mine,
-				// I cannot be < the other clock
-				if (otherWk.isLessThan(wk))
-					return false;
-				if (!lessThan)
-					lessThan = wk.isLessThan(otherWk);
-			} else {
-				// not present in foreign clock, compare my value with zero
-				if (zero.isLessThan(wk)) {
-					return false;
-				}
-			}
-		}
-
-		// At this point we have tested all the Logical Clocks in
-		// my vector. We can no longer find a clock in my vector that
-		// is greater than the equivalent in other. Therefore, if we are less
-		// than the
-		// other by the comparison to this point, we are done.
-		// If we have not found a 'less than' clock yet, we must search for a
-		// clock in the other vector, that we do not have, that is greater than
-		// zero.
-
-		if (!lessThan) {
-			for (String nm : ((VectorClock) other).clocks.keySet()) {
-
-				if (!(clocks.containsKey(nm))
-						&& zero.isLessThan(((VectorClock) other).clocks.get(nm)))
-
-					lessThan = true;
-				break;
-			}
+			// If the foreign clock is less than mine,
+			// I cannot be < the other clock
+			if (otherWk < wk)
+				return false;
+			if (wk < otherWk)
+				lessThan = true;
 		}
 
 		return lessThan;
@@ -284,19 +751,50 @@ public class VectorClock extends ClockOperations implements Serializable,
 
 	/**
 	 * Increment the Logical Clock in this Vector belonging to the argument key.
+	 * 
+	 * @throws ArithmeticException if the Logical Clock is Long.MAX_VALUE
 	 */
-	public void tick(String name) {
-		LogicalClock toTick = clocks.get(name);
+	public synchronized void tick(String name) {
 
-		if (toTick == null) {
-			clocks.put(name, (toTick = new LogicalClock()));
-		}
+		int id = ProcessRegistry.idOf(name);
 
-		toTick.tick();
+		set(id, Math.addExact(at(counts, id), 1));
 	}
 
 	// no-op - required by abstract base class
 	@Override
 	protected void doTick() {
 	}
+
+	/**
+	 * the process indices are local to this JVM, so serialize the entries by
+	 * name
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+
+		out.defaultWriteObject();
+
+		long[] mine = counts;
+		String[] names = processNames(mine);
+
+		out.writeInt(names.length);
+		for (String pid : names) {
+			out.writeUTF(pid);
+			out.writeLong(mine[ProcessRegistry.lookup(pid)]);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+
+		in.defaultReadObject();
+
+		long[] parsed = EMPTY;
+
+		for (int n = in.readInt(); n > 0; --n) {
+			String pid = in.readUTF();
+			parsed = put(parsed, ProcessRegistry.idOf(pid), in.readLong());
+		}
+		counts = parsed;
+	}
 }
@@ -1,12 +1,20 @@
 package org.brann.clock;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
-import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -20,9 +28,12 @@ import com.fasterxml.jackson.core.JsonToken;
 * this timestamp, the owner's Vector Clock and a collection of
 * Vector Clocks representing the known condition of the Vector
 * Clocks of other processes
+* <P> Copies are cheap: a copy shares the original's vector clocks and
+* its collection of foreign clocks until one of them is updated. A vector
+* clock held in a timestamp is never updated in place, it is replaced.
 */
 @SuppressWarnings("serial")
-public class VectorTimeStamp implements Serializable {
+public class VectorTimeStamp extends JsonWritable {
     
 	/**
 	 * produce JSON in the argument generator from this object
@@ -40,7 +51,9 @@ public class VectorTimeStamp implements Serializable {
 		jg.writeFieldName(TextConstants.FOREIGN_CLOCKS);
 		jg.writeStartArray();
 		
-		for (String clockOwner : stamp.keySet()) {
+		// in name order, so that equal timestamps give the same JSON however
+		// their foreign clocks are held
+		for (String clockOwner : new TreeSet<String>(stamp.keySet())) {
         	jg.writeStartObject();
         	
         	jg.writeStringField(TextConstants.PROCESS_ID, clockOwner);
@@ -64,7 +77,7 @@ public class VectorTimeStamp implements Serializable {
     	StringWriter sw = new StringWriter();
     	
     	try {
-			JsonGenerator jg = new JsonFactory().createGenerator(sw);
+			JsonGenerator jg = JsonCodec.generator(sw);
 			jg.setPrettyPrinter(new com.fasterxml.jackson.core.util.DefaultPrettyPrinter());
 			
 			
@@ -83,6 +96,123 @@ public class VectorTimeStamp implements Serializable {
     	return sw.toString();
     }
 
+
+    /**
+     * the dictionary of every process named in this timestamp
+     */
+    private BinaryCodec.Dictionary dictionary() {
+
+        BinaryCodec.Dictionary dict = new BinaryCodec.Dictionary();
+
+        if (owner != null) {
+            dict.add(owner);
+        }
+        myclock.addTo(dict);
+        for (Map.Entry<String, VectorClock> entry : stamp.entrySet()) {
+            dict.add(entry.getKey());
+            entry.getValue().addTo(dict);
+        }
+        return dict;
+    }
+
+    private int encodedLength(BinaryCodec.Dictionary dict) {
+
+        int length = 1 + dict.encodedLength()
+                + BinaryCodec.varLongLength(owner == null ? 0 : dict.positionOf(owner) + 1)
+                + myclock.encodedLength(dict)
+                + BinaryCodec.varLongLength(stamp.size());
+
+        for (Map.Entry<String, VectorClock> entry : stamp.entrySet()) {
+            length += BinaryCodec.varLongLength(dict.positionOf(entry.getKey()))
+                    + entry.getValue().encodedLength(dict);
+        }
+        return length;
+    }
+
+    private void encode(ByteBuffer buf, BinaryCodec.Dictionary dict) {
+
+        buf.put(BinaryCodec.VECTOR_TIME_STAMP);
+        dict.encode(buf);
+        BinaryCodec.writeVarLong(buf, owner == null ? 0 : dict.positionOf(owner) + 1);
+        myclock.encode(buf, dict);
+
+        BinaryCodec.writeVarLong(buf, stamp.size());
+        for (Map.Entry<String, VectorClock> entry : stamp.entrySet()) {
+            BinaryCodec.writeVarLong(buf, dict.positionOf(entry.getKey()));
+            entry.getValue().encode(buf, dict);
+        }
+    }
+
+    /**
+     * the length of the binary form written by encode()
+     */
+    public synchronized int encodedLength() {
+        return encodedLength(dictionary());
+    }
+
+    /**
+     * Write the compact binary form of this timestamp: a dictionary of every
+     * process named, then the owner, the owner's vector clock and the foreign
+     * vector clocks, each referring to processes by dictionary position.
+     * @throws java.nio.BufferOverflowException if the buffer has less than
+     * encodedLength() remaining
+     */
+    public synchronized void encode(ByteBuffer buf) {
+        encode(buf, dictionary());
+    }
+
+    /**
+     * the binary form of this timestamp, as written by encode()
+     */
+    public synchronized byte[] toBytes() {
+
+        BinaryCodec.Dictionary dict = dictionary();
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength(dict));
+
+        encode(buf, dict);
+        return buf.array();
+    }
+
+    private void decode(ByteBuffer buf) {
+
+        BinaryCodec.expect(buf, BinaryCodec.VECTOR_TIME_STAMP);
+
+        String[] names = BinaryCodec.Dictionary.decode(buf);
+        int ownerPosition = BinaryCodec.readVarInt(buf);
+
+        if (ownerPosition > names.length) {
+            throw new IllegalArgumentException("Unknown owner: " + ownerPosition);
+        }
+
+        long[] mine = VectorClock.decode(buf, names.length);
+        int clocks = BinaryCodec.readLength(buf);
+        int[] positions = new int[clocks];
+        long[][] foreign = new long[clocks][];
+
+        for (int i = 0; i < clocks; ++i) {
+
+            positions[i] = BinaryCodec.readVarInt(buf);
+
+            if (positions[i] >= names.length) {
+                throw new IllegalArgumentException("Unknown process: " + positions[i]);
+            }
+            foreign[i] = VectorClock.decode(buf, names.length);
+        }
+
+        // the whole stamp has been read: only now register its names
+        int[] ids = BinaryCodec.Dictionary.ids(names);
+
+        owner = ownerPosition == 0 ? null : names[ownerPosition - 1];
+        myclock.resolve(mine, ids);
+        for (int i = 0; i < clocks; ++i) {
+
+            VectorClock vc = new VectorClock();
+            vc.resolve(foreign[i], ids);
+
+            stamp.put(names[positions[i]], vc);
+        }
+    }
+
     /**
     * Implement the Schiper Eggli Sandoz protocol for
     * determining causal order of point-to-point messages.
@@ -104,6 +234,55 @@ public class VectorTimeStamp implements Serializable {
         return true;
     }
 
+    /**
+    * Identify what a received timestamp that is NOT in causal order is waiting
+    * for: a process whose Logical Clock in this process's vector clock must
+    * advance before the received timestamp can be in causal order.
+    *
+    * <P>When no single clock is behind (the received vector clock for this
+    * process equals this process's own) the owner is named, since the owner's
+    * clock advances with every event here.
+    */
+    public synchronized String awaitedProcess(VectorTimeStamp received) {
+
+        VectorClock receivedClock = received.stamp.get(owner);
+        String awaited = null;
+
+        if (receivedClock != null) {
+            awaited = receivedClock.greaterEntry(myclock);
+        }
+        return awaited == null ? owner : awaited;
+    }
+
+    /**
+    * The value the named process's Logical Clock in this process's vector clock
+    * must reach before it stops blocking the received timestamp.
+    * @see #awaitedProcess(VectorTimeStamp)
+    */
+    public synchronized LogicalClock awaitedClock(VectorTimeStamp received, String process) {
+
+        VectorClock receivedClock = received.stamp.get(owner);
+        LogicalClock required = receivedClock == null ? null : receivedClock.clockFor(process);
+        LogicalClock current = myclock.clockFor(process);
+
+        current = current == null ? new LogicalClock() : new LogicalClock(current);
+
+        if (required != null && current.isLessThan(required)) {
+            return new LogicalClock(required);
+        }
+        current.tick();
+        return current;
+    }
+
+    /**
+    * Test whether the named process's Logical Clock in this process's vector
+    * clock has reached the argument value.
+    */
+    public synchronized boolean hasReached(String process, LogicalClock value) {
+
+        return value.fitsInLong() && value.longValue() <= myclock.countFor(process);
+    }
+
     /**
     * recognize an event at this process.  The effect is to increment the
     * Logical clock for the owning process in the owning process's vector
@@ -125,12 +304,51 @@ public class VectorTimeStamp implements Serializable {
     /**
     * Set the Vector Clock for the named process to the current value of the
     * owner's clock.  Any existing clock is over-written.
+    * A send takes a copy of the timestamp and then inserts the destination's
+    * clock, so the foreign clocks are usually shared at this point: rather
+    * than copy them all for the one entry, the entry is laid over the shared
+    * clocks, and the layers are only flattened into a copy every
+    * MAX_OVERLAY_DEPTH inserts.
     */
     public synchronized void insertClockFor(String other) {
 
-        stamp.put(other, (VectorClock)myclock.clone());
+        VectorClock current = (VectorClock)myclock.clone();
+
+        if (sharedStamp && Overlay.depth(stamp) < MAX_OVERLAY_DEPTH) {
+            stamp = new Overlay(stamp, other, current);
+        } else {
+            writableStamp().put(other, current);
+        }
     }
     
+    /**
+     * Multicast extension - the timestamps for a message sent to each of the
+     * named processes. The timestamp for a destination is this timestamp with
+     * the owner's vector clock inserted for every other destination (as
+     * insertClockFor() would). The timestamps share one copy of that body and
+     * each differs from it only in the destination's own entry, so they are
+     * built in time proportional to the number of destinations.
+     * @param destn names of the destination processes
+     * @return a timestamp for each destination, in the same order
+     */
+    public synchronized VectorTimeStamp[] multicastStamps(String[] destn) {
+
+        VectorClock current = (VectorClock)myclock.clone();
+        Map<String, VectorClock> common = new HashMap<String, VectorClock>(stamp);
+        VectorTimeStamp[] result = new VectorTimeStamp[destn.length];
+
+        for (String other : destn) {
+            common.put(other, current);
+        }
+        for (int i = 0; i < destn.length; ++i) {
+            result[i] = new VectorTimeStamp(owner);
+            result[i].myclock = (VectorClock)current.clone();
+            result[i].stamp = new Overlay(common, destn[i], stamp.get(destn[i]));
+            result[i].sharedStamp = true;
+        }
+        return result;
+    }
+
     /**
      * Multicast extension - set sender's clock in the various receiver vector clocks (so the multicast
      * receivers are updated for each other's reception of the message)
@@ -149,29 +367,173 @@ public class VectorTimeStamp implements Serializable {
     * corresponding foreign vector Clock in this timestamp.  If this timestamp did not contain
     * a Vector Clock for the process concerned, insert the received Vector Clock
     * into this timestamp. [Except where the process is this process.]
+    * <P> The received timestamp must not be updated during the merge.
     *
     */
     public synchronized void mergeOther(VectorTimeStamp other ) {
 
-        ;
+        Map<String, VectorClock> others;
 
-        for (String wknm : other.stamp.keySet()) {
+        synchronized (other) {
+            others = other.stamp;
+        }
+
+        for (String wknm : others.keySet()) {
              
         	// ignore foreign clocks referring to this process
              if (wknm.compareTo(owner) != 0) {
                 if (stamp.containsKey(wknm)) {
                 	// my clock contains a vector corresponding to this one in the foreign clock
                 	// merge the vectors
-                    stamp.get(wknm).merge(other.stamp.get(wknm));
+                    VectorClock merged = (VectorClock)stamp.get(wknm).clone();
+
+                    merged.merge(others.get(wknm));
+                    writableStamp().put(wknm, merged);
                 } else {
                 	// my clock does not contain a vector matching
-                	// the one in the foreign clock, include it in mine.
-                   stamp.put (wknm, (VectorClock)other.stamp.get(wknm));
+                	// the one in the foreign clock, include a copy in mine.
+                   writableStamp().put (wknm, (VectorClock)others.get(wknm).clone());
                 }
              }
         }
     }
 
+    /**
+    * Discard the constraints that the owner of a received timestamp is known
+    * to have met. The received timestamp carries its owner's vector clock as
+    * it sent, which the owner's clock has since passed, so no entry of this
+    * timestamp's foreign clock for the owner that is no greater can hold back
+    * a message there. Those entries are dropped, and the foreign clock with
+    * them once none is left. Foreign clocks so keep only constraints that may
+    * still be unmet, rather than one for every process ever sent to.
+    */
+    public synchronized void prune(VectorTimeStamp received) {
+
+        String sender;
+        VectorClock known;
+
+        synchronized (received) {
+            sender = received.owner;
+            known = received.myclock;
+        }
+
+        VectorClock foreign = (sender == null) ? null : stamp.get(sender);
+
+        if (foreign == null || sender.equals(owner)) {
+            return;
+        }
+
+        VectorClock pruned = foreign.without(known);
+
+        if (pruned == foreign) {
+            return;
+        }
+        if (pruned.isEmpty()) {
+            writableStamp().remove(sender);
+        } else {
+            writableStamp().put(sender, pruned);
+        }
+    }
+
+    /**
+    * The changes since an earlier value of this timestamp: the owner, the
+    * entries of the owner's vector clock that have advanced, and for each
+    * foreign vector clock that is new or has advanced, its advanced entries.
+    * Applying the result to the earlier value with applyDelta() reproduces
+    * this timestamp, except for entries pruned since - those the receiver
+    * keeps are constraints already met, and so hold nothing back.
+    * @param previous the earlier value, or null for a copy of the whole timestamp
+    */
+    public synchronized VectorTimeStamp deltaFrom(VectorTimeStamp previous) {
+
+        if (previous == null) {
+            return new VectorTimeStamp(this);
+        }
+
+        VectorTimeStamp delta = new VectorTimeStamp(owner);
+
+        delta.myclock = myclock.deltaFrom(previous.myclock);
+
+        for (Map.Entry<String, VectorClock> entry : stamp.entrySet()) {
+
+            VectorClock changed = entry.getValue().deltaFrom(previous.stamp.get(entry.getKey()));
+
+            if (!changed.isEmpty() || !previous.stamp.containsKey(entry.getKey())) {
+                delta.stamp.put(entry.getKey(), changed);
+            }
+        }
+        return delta;
+    }
+
+    /**
+    * Bring this timestamp up to date with the changes produced by deltaFrom().
+    */
+    public synchronized void applyDelta(VectorTimeStamp delta) {
+
+        myclock.merge(delta.myclock);
+
+        for (Map.Entry<String, VectorClock> entry : delta.stamp.entrySet()) {
+
+            VectorClock updated = stamp.get(entry.getKey());
+
+            updated = (VectorClock)(updated == null ? entry.getValue() : updated).clone();
+            updated.merge(entry.getValue());
+            writableStamp().put(entry.getKey(), updated);
+        }
+    }
+
+    /**
+    * @return the name of the process owning this timestamp
+    */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+    * @return the owner's Logical Clock value in the owner's vector clock -
+    * the position of the stamped event among the owner's events
+    */
+    public synchronized long ownerCount() {
+        return myclock.countFor(owner);
+    }
+
+    /**
+    * @return the named process's Logical Clock value in the owner's vector
+    * clock, zero if it is absent
+    */
+    public synchronized long countFor(String process) {
+        return myclock.countFor(process);
+    }
+
+    /**
+    * Drop every entry for a process that has left, once no timestamp can hold
+    * a message back on it: its clock in the owner's vector clock and in each
+    * foreign vector clock, and the foreign vector clock for it.
+    */
+    public synchronized void retire(String process) {
+
+        Map<String, VectorClock> changed = null;
+
+        myclock.clearClockFor(process);
+        for (Map.Entry<String, VectorClock> entry : stamp.entrySet()) {
+
+            VectorClock without = entry.getValue().without(process);
+
+            if (without != entry.getValue()) {
+                if (changed == null) {
+                    changed = new HashMap<String, VectorClock>();
+                }
+                changed.put(entry.getKey(), without);
+            }
+        }
+        if (changed != null) {
+            writableStamp().putAll(changed);
+        }
+        if (stamp.containsKey(process)) {
+            writableStamp().remove(process);
+        }
+    }
+
     /**
     * Merge Local clock with a received vector timestamp's local clock.  
     */
@@ -192,18 +554,32 @@ public class VectorTimeStamp implements Serializable {
     /**
     * create a new timestamp identical to this one.
     * Used when building a timestamp to put on an outgoing message.
+    * The copy shares the source's clocks until either timestamp is updated.
     */
     public VectorTimeStamp(VectorTimeStamp source) {
 
-            owner = source.owner;
-            myclock = (VectorClock)source.myclock.clone();
-            stamp = new HashMap<String, VectorClock>();
-            synchronized (source.stamp) {
-                for (String key : source.stamp.keySet()) {
-                	stamp.put(key, ((VectorClock)(source.stamp.get(key)).clone()));
-                }                     
+            synchronized (source) {
+                owner = source.owner;
+                myclock = (VectorClock)source.myclock.clone();
+                stamp = source.stamp;
+                sharedStamp = true;
+                source.sharedStamp = true;
             }
     }
+
+    /**
+    * the foreign clocks, ready to be updated - copied first if another
+    * timestamp shares them, or they are overlays (which are never updated,
+    * and may have been read back without the flag). Callers hold the lock.
+    */
+    private Map<String, VectorClock> writableStamp() {
+
+        if (sharedStamp || stamp instanceof Overlay) {
+            stamp = new HashMap<String, VectorClock>(stamp);
+            sharedStamp = false;
+        }
+        return stamp;
+    }
     
     protected void fromJson(JsonParser jp) throws IOException {
     	
@@ -216,7 +592,6 @@ public class VectorTimeStamp implements Serializable {
 			owner = jp.getText();
 			
 			jp.nextToken();
-			myclock = new VectorClock(); 
 			myclock.fromJson(jp);
 			
 			if (jp.getCurrentName().compareTo(TextConstants.FOREIGN_CLOCKS) != 0)
@@ -253,23 +628,69 @@ public class VectorTimeStamp implements Serializable {
      * @param stringStamp representation of Vector clock produced by toString operation of this class
      */
     public VectorTimeStamp(String name, String stringStamp) {
+
+        this(name, JsonCodec.parser(stringStamp));
+    }
+
+    /**
+     * Build a VectorTimeStamp from the owner name and JSON, as produced by
+     * toString() or writeJson(), held in a byte array in UTF-8 or another
+     * Unicode encoding. The bytes are parsed directly, without decoding them
+     * to a String.
+     * @param name name of the owner, if Null, the owner from the JSON is used
+     */
+    public static VectorTimeStamp parseJson(String name, byte[] json) {
+        return new VectorTimeStamp(name, JsonCodec.parser(json, 0, json.length));
+    }
+
+    /**
+     * Build a VectorTimeStamp from the owner name and JSON, as produced by
+     * toString() or writeJson(), making up the remaining content of the
+     * buffer. A heap buffer is parsed in place and a direct buffer is read
+     * without copying it whole. The buffer's position is moved to its limit.
+     * @param name name of the owner, if Null, the owner from the JSON is used
+     */
+    public static VectorTimeStamp parseJson(String name, ByteBuffer json) {
+        return new VectorTimeStamp(name, JsonCodec.parser(json));
+    }
+
+    /**
+     * Build a VectorTimeStamp from the owner name and JSON, as produced by
+     * toString() or writeJson(), read from the stream. The stream is left
+     * open.
+     * @param name name of the owner, if Null, the owner from the JSON is used
+     */
+    public static VectorTimeStamp parseJson(String name, InputStream json) {
+        return new VectorTimeStamp(name, JsonCodec.parser(json));
+    }
+
+    /**
+     * build a Vector time stamp from the owner name and a parser for its JSON.
+     * A null parser, or bad JSON, gives a null stamp.
+     * @param name name of the owner, if Null, the owner from the JSON is used
+     */
+    private VectorTimeStamp(String name, JsonParser jp) {
+        load(name, jp);
+    }
+
+    private void load(String name, JsonParser jp) {
     	
-        stamp = new HashMap<String, VectorClock>();
+        owner = null;
+        empty();
         
         // re-assemble a vector time stamp from the argument
         
     	try {
-			JsonParser jp = new JsonFactory().createParser(stringStamp);
-
-			jp.nextToken(); //move to start object
+    		if (jp != null) {
+				jp.nextToken(); //move to start object
+				
+				fromJson(jp);
 			
-			fromJson(jp);
-		
-			jp.close();
+				jp.close();
+    		}
 		} catch (IOException e) {
-			// can't happen in Stringreader - create null stamp
-			stamp = new HashMap<String, VectorClock>();
-			myclock = new VectorClock();
+			// bad JSON - create null stamp
+			empty();
 		}
     	
     	// correct ownership if the argument owner does not match the restored stamp
@@ -277,13 +698,199 @@ public class VectorTimeStamp implements Serializable {
     	
     	if (name != null) {
     		owner = name;
-    	    myclock = new VectorClock();
+    	    myclock.clear();
     	}
     		    	
     }
 
+    /**
+     * build a Vector time stamp from the owner name and the binary form written by encode.
+     * The buffer's position is moved past the timestamp.
+     * @param name name of the owner, if Null, the owner from the encoded stamp is used
+     * @param encoded binary form of a timestamp
+     */
+    public VectorTimeStamp(String name, ByteBuffer encoded) {
+        load(name, encoded);
+    }
+
+    private void load(String name, ByteBuffer encoded) {
+
+        owner = null;
+        empty();
+
+        try {
+            decode(encoded);
+        } catch (BufferUnderflowException e) {
+            // truncated - create null stamp
+            empty();
+        } catch (IllegalArgumentException e) {
+            empty();
+        }
+
+        if (name != null) {
+            owner = name;
+            myclock.clear();
+        }
+    }
+
+    /**
+     * Reuse this timestamp, making it the same as a new VectorTimeStamp(name).
+     * The objects it holds are reused where no other timestamp shares them,
+     * so a timestamp that is reset and refilled for each received message
+     * saves most of the allocation of building a new one.
+     */
+    public synchronized void reset(String name) {
+        owner = name;
+        empty();
+    }
+
+    /**
+     * Reuse this timestamp, making it the same as a new
+     * VectorTimeStamp(name, stringStamp).
+     * @see #reset(String)
+     */
+    public synchronized void reset(String name, String stringStamp) {
+        load(name, JsonCodec.parser(stringStamp));
+    }
+
+    /**
+     * Reuse this timestamp, making it the same as a new
+     * VectorTimeStamp(name, encoded).
+     * @see #reset(String)
+     */
+    public synchronized void reset(String name, ByteBuffer encoded) {
+        load(name, encoded);
+    }
+
+    /**
+     * clear the clocks, keeping the objects holding them where they are not
+     * shared
+     */
+    private void empty() {
+
+        if (stamp == null || sharedStamp || stamp instanceof Overlay) {
+            stamp = new HashMap<String, VectorClock>();
+            sharedStamp = false;
+        } else {
+            stamp.clear();
+        }
+        if (myclock == null) {
+            myclock = new VectorClock();
+        } else {
+            myclock.clear();
+        }
+    }
+
+    /**
+     * A view of a collection of foreign clocks with the entry for one process
+     * replaced (or removed when the replacement is null). Never updated - a
+     * timestamp holding one copies it before changing it.
+     */
+    private static final class Overlay extends AbstractMap<String, VectorClock> implements Serializable {
+
+        private final Map<String, VectorClock> base;
+        private final String key;
+        private final VectorClock value;
+        private final int depth;
+
+        Overlay(Map<String, VectorClock> base, String key, VectorClock value) {
+            this.base = base;
+            this.key = key;
+            this.value = value;
+            depth = depth(base) + 1;
+        }
+
+        /**
+         * @return the number of overlays laid one over another in the map
+         */
+        static int depth(Map<String, VectorClock> stamp) {
+            return stamp instanceof Overlay ? ((Overlay) stamp).depth : 0;
+        }
+
+        @Override
+        public VectorClock get(Object process) {
+            return key.equals(process) ? value : base.get(process);
+        }
+
+        @Override
+        public boolean containsKey(Object process) {
+            return key.equals(process) ? value != null : base.containsKey(process);
+        }
+
+        @Override
+        public int size() {
+            return base.size() - (base.containsKey(key) ? 1 : 0) + (value == null ? 0 : 1);
+        }
+
+        @Override
+        public Set<Map.Entry<String, VectorClock>> entrySet() {
+
+            return new AbstractSet<Map.Entry<String, VectorClock>>() {
+
+                @Override
+                public int size() {
+                    return Overlay.this.size();
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, VectorClock>> iterator() {
+
+                    final Iterator<Map.Entry<String, VectorClock>> entries = base.entrySet().iterator();
+
+                    return new Iterator<Map.Entry<String, VectorClock>>() {
+
+                        private Map.Entry<String, VectorClock> next = advance();
+                        private boolean replaced = value == null;
+
+                        private Map.Entry<String, VectorClock> advance() {
+                            while (entries.hasNext()) {
+                                Map.Entry<String, VectorClock> entry = entries.next();
+
+                                if (!key.equals(entry.getKey())) {
+                                    return entry;
+                                }
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next != null || !replaced;
+                        }
+
+                        @Override
+                        public Map.Entry<String, VectorClock> next() {
+
+                            Map.Entry<String, VectorClock> result = next;
+
+                            if (result != null) {
+                                next = advance();
+                            } else if (!replaced) {
+                                replaced = true;
+                                result = new AbstractMap.SimpleImmutableEntry<String, VectorClock>(key, value);
+                            } else {
+                                throw new NoSuchElementException();
+                            }
+                            return result;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /** the most overlays laid one over another before the foreign clocks are copied */
+    private static final int MAX_OVERLAY_DEPTH = 16;
+
     private VectorClock myclock;
     private String owner;
     private Map<String, VectorClock> stamp;
+    /** true while stamp may be shared with another timestamp */
+    private transient boolean sharedStamp;
 
 }
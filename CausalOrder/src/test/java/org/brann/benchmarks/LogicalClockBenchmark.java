@@ -0,0 +1,55 @@
+package org.brann.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.brann.clock.LogicalClock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Logical Clock tick and comparison, for a value held in a long and for one
+ * that has outgrown a long and is held in 'digits'.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LogicalClockBenchmark {
+
+	@Param({ "long", "digits" })
+	public String representation;
+
+	private LogicalClock clock;
+	private LogicalClock other;
+
+	@Setup
+	public void setup() {
+
+		if (representation.equals("digits")) {
+			clock = new LogicalClock("{\"LLC\":[1,0,0,0]}");
+			other = new LogicalClock("{\"LLC\":[1,0,0,1]}");
+		} else {
+			clock = new LogicalClock();
+			other = new LogicalClock();
+			other.tick();
+		}
+	}
+
+	@Benchmark
+	public LogicalClock tick() {
+
+		clock.tick();
+		return clock;
+	}
+
+	@Benchmark
+	public boolean isLessThan() {
+
+		return clock.isLessThan(other);
+	}
+}
@@ -0,0 +1,111 @@
+package org.brann.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.brann.message.CausallyOrderedMessage;
+import org.brann.message.CausallyOrderedMsgHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Send and receive through the message handlers. Each invocation sends a batch
+ * of messages from p1 to p2 and delivers them to p2 with a proportion of them
+ * swapped with their successor, so they must be held back until their
+ * predecessor arrives, either one at a time or as a single batch. Scores are
+ * per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MsgHandlerBenchmark {
+
+	private static final int BATCH = 100;
+
+	/** the proportion of messages delivered after their successor */
+	@Param({ "0", "0.1", "0.5" })
+	public double reorderRate;
+
+	/** "pooled" is binary timestamps, decoded into pooled timestamps */
+	@Param({ "json", "binary", "delta", "pooled" })
+	public String timestamps;
+
+	private CausallyOrderedMsgHandler sender;
+	private CausallyOrderedMsgHandler receiver;
+	private int[] arrival;
+
+	@Setup
+	public void setup() {
+
+		sender = newHandler("p1");
+		receiver = newHandler("p2");
+
+		// the same arrival order for every invocation
+		Random random = new Random(BATCH);
+
+		arrival = new int[BATCH];
+		for (int i = 0; i < BATCH; ++i)
+			arrival[i] = i;
+		for (int i = 0; i + 1 < BATCH; ++i) {
+			if (random.nextDouble() < reorderRate) {
+				arrival[i] = i + 1;
+				arrival[i + 1] = i;
+				++i;
+			}
+		}
+	}
+
+	private CausallyOrderedMsgHandler newHandler(String name) {
+
+		CausallyOrderedMsgHandler handler = new CausallyOrderedMsgHandler(name);
+
+		handler.setBinaryTimestamps(!timestamps.equals("json"));
+		handler.setDeltaTimestamps(timestamps.equals("delta"));
+		handler.setPooledTimestamps(timestamps.equals("pooled"));
+		return handler;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int sendReceive() {
+
+		CausallyOrderedMessage[] sent = new CausallyOrderedMessage[BATCH];
+		int delivered = 0;
+
+		for (int i = 0; i < BATCH; ++i)
+			sent[i] = sender.sendMessage(Integer.valueOf(i), "p2");
+
+		for (int i = 0; i < BATCH; ++i) {
+			List<Object> payloads = receiver.recvMessage(sent[arrival[i]]);
+
+			if (payloads != null)
+				delivered += payloads.size();
+		}
+		return delivered;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public int sendReceiveBatch() {
+
+		CausallyOrderedMessage[] sent = new CausallyOrderedMessage[BATCH];
+		List<CausallyOrderedMessage> batch = new ArrayList<CausallyOrderedMessage>(BATCH);
+
+		for (int i = 0; i < BATCH; ++i)
+			sent[i] = sender.sendMessage(Integer.valueOf(i), "p2");
+
+		for (int i = 0; i < BATCH; ++i)
+			batch.add(sent[arrival[i]]);
+
+		return receiver.recvMessages(batch).size();
+	}
+}
@@ -0,0 +1,52 @@
+package org.brann.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.brann.message.CausallyOrderedMessage;
+import org.brann.message.CausallyOrderedMsgHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Multicast send to groups of varying size. The sender has already sent to
+ * every member, so holds a foreign clock for each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MulticastBenchmark {
+
+	@Param({ "8", "64" })
+	public int groupSize;
+
+	@Param({ "json", "binary" })
+	public String timestamps;
+
+	private CausallyOrderedMsgHandler sender;
+	private String[] group;
+
+	@Setup
+	public void setup() {
+
+		sender = new CausallyOrderedMsgHandler("p0");
+		sender.setBinaryTimestamps(timestamps.equals("binary"));
+
+		group = new String[groupSize];
+		for (int i = 0; i < groupSize; ++i) {
+			group[i] = "p" + (i + 1);
+			sender.sendMessage("hello", group[i]);
+		}
+	}
+
+	@Benchmark
+	public CausallyOrderedMessage[] multicast() {
+
+		return sender.sendMessage("payload", group);
+	}
+}
@@ -0,0 +1,68 @@
+package org.brann.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.brann.clock.VectorClock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Vector Clock merge and comparison at varying vector widths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VectorClockBenchmark {
+
+	@Param({ "4", "16", "64", "256" })
+	public int width;
+
+	/** clocks that are concurrent - each is ahead in half the entries */
+	private VectorClock even;
+	private VectorClock odd;
+
+	/** a clock ahead of 'even' in the last entry only */
+	private VectorClock later;
+
+	@Setup
+	public void setup() {
+
+		even = new VectorClock("{\"VC\":[]}");
+		odd = new VectorClock("{\"VC\":[]}");
+
+		for (int i = 0; i < width; ++i) {
+			even.tick("p" + i);
+			odd.tick("p" + i);
+			(i % 2 == 0 ? even : odd).tick("p" + i);
+		}
+		later = (VectorClock) even.clone();
+		later.tick("p" + (width - 1));
+	}
+
+	@Benchmark
+	public VectorClock merge() {
+
+		VectorClock merged = (VectorClock) even.clone();
+
+		merged.merge(odd);
+		return merged;
+	}
+
+	@Benchmark
+	public boolean lessThan() {
+
+		return even.lessThan(later);
+	}
+
+	@Benchmark
+	public boolean lessThanConcurrent() {
+
+		return even.lessThan(odd);
+	}
+}
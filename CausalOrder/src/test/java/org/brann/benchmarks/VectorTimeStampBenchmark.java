@@ -0,0 +1,84 @@
+package org.brann.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.brann.clock.VectorTimeStamp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Vector Time Stamp serialization round-trips, JSON and binary, for a stamp
+ * holding a varying number of foreign clocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VectorTimeStampBenchmark {
+
+	@Param({ "4", "16", "64" })
+	public int processes;
+
+	private VectorTimeStamp stamp;
+	private String json;
+	private byte[] binary;
+
+	/**
+	 * the stamp of a process that has sent to each of the others in turn, so
+	 * holds a foreign clock for each
+	 */
+	@Setup
+	public void setup() {
+
+		stamp = new VectorTimeStamp("p0");
+
+		for (int i = 1; i < processes; ++i) {
+			stamp.tick();
+			stamp.insertClockFor("p" + i);
+		}
+		json = stamp.toString();
+		binary = stamp.toBytes();
+	}
+
+	@Benchmark
+	public String toJson() {
+
+		return stamp.toString();
+	}
+
+	@Benchmark
+	public VectorTimeStamp fromJson() {
+
+		return new VectorTimeStamp(null, json);
+	}
+
+	@Benchmark
+	public VectorTimeStamp jsonRoundTrip() {
+
+		return new VectorTimeStamp(null, stamp.toString());
+	}
+
+	@Benchmark
+	public byte[] toBytes() {
+
+		return stamp.toBytes();
+	}
+
+	@Benchmark
+	public VectorTimeStamp fromBytes() {
+
+		return new VectorTimeStamp(null, ByteBuffer.wrap(binary));
+	}
+
+	@Benchmark
+	public VectorTimeStamp copy() {
+
+		return new VectorTimeStamp(stamp);
+	}
+}
@@ -0,0 +1,131 @@
+package org.brann.clock.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.brann.clock.VectorClock;
+import org.brann.message.CausalBroadcastHandler;
+import org.brann.message.CausalBroadcastMessage;
+import org.junit.Test;
+
+public class TestCausalBroadcastHandler {
+
+	/**
+	 * A reply broadcast after delivering a message is held back wherever it
+	 * arrives before that message
+	 */
+	@Test
+	public void testCausalOrder() {
+
+		CausalBroadcastHandler p1 = new CausalBroadcastHandler("p1");
+		CausalBroadcastHandler p2 = new CausalBroadcastHandler("p2");
+		CausalBroadcastHandler p3 = new CausalBroadcastHandler("p3");
+
+		CausalBroadcastMessage m1 = p1.broadcast("m1");
+
+		assertEquals(Arrays.asList((Object) "m1"), p2.recvMessage(m1));
+
+		CausalBroadcastMessage m2 = p2.broadcast("m2");
+
+		// one vector on the message, whatever the size of the group
+		assertEquals(m2.getTimestamp(), new VectorClock(m2.getTimestamp()).toJsonString());
+		assertEquals("p2", m2.getSender());
+
+		assertNull(p3.recvMessage(m2));
+		assertEquals(1, p3.getHeldCount());
+		assertEquals(Arrays.asList((Object) "m1", "m2"), p3.recvMessage(m1));
+		assertEquals(0, p3.getHeldCount());
+
+		assertEquals(Arrays.asList((Object) "m2"), p1.recvMessage(m2));
+	}
+
+	/**
+	 * Messages from one sender are delivered in the order sent, and duplicates
+	 * and a sender's own messages are discarded
+	 */
+	@Test
+	public void testFifoAndDuplicates() {
+
+		CausalBroadcastHandler p1 = new CausalBroadcastHandler("p1");
+		CausalBroadcastHandler p2 = new CausalBroadcastHandler("p2");
+
+		p1.setBinaryTimestamps(true);
+
+		CausalBroadcastMessage a = p1.broadcast("a");
+		CausalBroadcastMessage b = p1.broadcast("b");
+		CausalBroadcastMessage c = p1.broadcast("c");
+
+		assertNotNull(c.getEncodedTimestamp());
+		assertNull(p2.recvMessage(c));
+		assertNull(p2.recvMessage(b));
+		assertNull(p2.recvMessage(c));
+		assertEquals(2, p2.getHeldCount());
+		assertEquals(Arrays.asList((Object) "a", "b", "c"), p2.recvMessage(a));
+		assertNull(p2.recvMessage(a));
+		assertEquals(3, p2.getClock().countFor("p1"));
+
+		assertNull(p1.recvMessage(a));
+		assertEquals(3, p1.getClock().countFor("p1"));
+	}
+
+	/**
+	 * A group exchanging messages, each member delivering what it receives
+	 * before broadcasting; an observer receiving everything in a random order
+	 * delivers each message after every message it depends on
+	 */
+	@Test
+	public void testShuffledArrivals() {
+
+		final int members = 4;
+		final int rounds = 30;
+		Random random = new Random(23);
+		List<CausalBroadcastHandler> group = new ArrayList<CausalBroadcastHandler>();
+		List<List<CausalBroadcastMessage>> inbox = new ArrayList<List<CausalBroadcastMessage>>();
+		List<CausalBroadcastMessage> sent = new ArrayList<CausalBroadcastMessage>();
+		Map<Object, VectorClock> stamps = new HashMap<Object, VectorClock>();
+
+		for (int m = 0; m < members; ++m) {
+			group.add(new CausalBroadcastHandler("p" + m));
+			inbox.add(new ArrayList<CausalBroadcastMessage>());
+		}
+		for (int round = 0; round < rounds; ++round) {
+
+			int sender = random.nextInt(members);
+
+			// the sender takes in some of what it has been sent first
+			List<CausalBroadcastMessage> waiting = inbox.get(sender);
+			for (int n = random.nextInt(waiting.size() + 1); n > 0; --n)
+				group.get(sender).recvMessage(waiting.remove(0));
+
+			CausalBroadcastMessage msg = group.get(sender).broadcast("r" + round);
+
+			sent.add(msg);
+			stamps.put(msg.getPayload(), new VectorClock(msg.getTimestamp()));
+			for (int m = 0; m < members; ++m)
+				if (m != sender)
+					inbox.get(m).add(msg);
+		}
+
+		CausalBroadcastHandler observer = new CausalBroadcastHandler("observer");
+		List<Object> delivered = new ArrayList<Object>();
+
+		Collections.shuffle(sent, random);
+		for (CausalBroadcastMessage msg : sent) {
+			List<Object> now = observer.recvMessage(msg);
+			if (now != null)
+				delivered.addAll(now);
+		}
+
+		assertEquals(rounds, delivered.size());
+		for (int i = 0; i < delivered.size(); ++i)
+			for (int j = i + 1; j < delivered.size(); ++j)
+				assertFalse(stamps.get(delivered.get(j)).lessThan(stamps.get(delivered.get(i))));
+	}
+}
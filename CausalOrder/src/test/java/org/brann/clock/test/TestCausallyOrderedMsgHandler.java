@@ -0,0 +1,1138 @@
+package org.brann.clock.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.brann.message.CausallyOrderedMessage;
+import org.brann.message.CausallyOrderedMsgHandler;
+import org.brann.message.DeliveryListener;
+import org.brann.message.DeliveryQueue;
+import org.brann.message.HoldBackOverflowException;
+import org.brann.message.MissingMessageListener;
+import org.brann.message.OverflowPolicy;
+import org.brann.clock.LogicalClock;
+import org.junit.Test;
+
+public class TestCausallyOrderedMsgHandler {
+
+	/**
+	 * Test method for {@link org.brann.message.CausallyOrderedMsgHandler#recvMessage(CausallyOrderedMessage)}.
+	 */
+	@Test
+	public void testHeldMessageReleased() {
+
+		// p1 sends to p3
+		// p1 sends to p2
+		// p2 receives p1's message
+		// p2 sends to p3
+		// p3 receives p2's message (out of order, held)
+		// p3 receives p1's message (in order) and p2's message is released
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		CausallyOrderedMessage p1p3 = p1.sendMessage("p1p3", "p3");
+		CausallyOrderedMessage p1p2 = p1.sendMessage("p1p2", "p2");
+
+		assertEquals(Arrays.asList((Object) "p1p2"), p2.recvMessage(p1p2));
+
+		CausallyOrderedMessage p2p3 = p2.sendMessage("p2p3", "p3");
+
+		assertNull(p3.recvMessage(p2p3));
+		assertEquals(Arrays.asList((Object) "p1p3", "p2p3"), p3.recvMessage(p1p3));
+	}
+
+	/**
+	 * A burst from one sender received in reverse order is held, then delivered
+	 * in the order sent once the first message arrives.
+	 */
+	@Test
+	public void testReversedBurst() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+
+		CausallyOrderedMessage[] burst = new CausallyOrderedMessage[BURST];
+		List<Object> sent = new ArrayList<Object>();
+
+		for (int i = 0; i < BURST; ++i) {
+			sent.add("m" + i);
+			burst[i] = p1.sendMessage("m" + i, "p2");
+		}
+
+		for (int i = BURST - 1; i > 0; --i)
+			assertNull(p2.recvMessage(burst[i]));
+
+		assertEquals(sent, p2.recvMessage(burst[0]));
+	}
+
+	/**
+	 * Test method for {@link org.brann.message.CausallyOrderedMsgHandler#recvMessages(java.util.Collection)}.
+	 */
+	@Test
+	public void testBatchReceive() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		CausallyOrderedMessage p1p3 = p1.sendMessage("p1p3", "p3");
+		CausallyOrderedMessage p1p2 = p1.sendMessage("p1p2", "p2");
+
+		assertEquals(Arrays.asList((Object) "p1p2"), p2.recvMessages(Arrays.asList(p1p2)));
+
+		CausallyOrderedMessage p2p3 = p2.sendMessage("p2p3", "p3");
+		CausallyOrderedMessage p1p3b = p1.sendMessage("p1p3b", "p3");
+
+		// nothing in a batch is in order
+		assertTrue(p3.recvMessages(Arrays.asList(p2p3)).isEmpty());
+
+		// the held message and the rest of the batch are released in causal order
+		assertEquals(Arrays.asList((Object) "p1p3", "p2p3", "p1p3b"),
+				p3.recvMessages(Arrays.asList(p1p3b, p1p3)));
+	}
+
+	/**
+	 * Test method for {@link org.brann.message.CausallyOrderedMsgHandler#sendMessage(Object, String[])}.
+	 */
+	@Test
+	public void testMulticast() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+		CausallyOrderedMsgHandler p4 = new CausallyOrderedMsgHandler("p4");
+
+		// p1 has already sent to p3, so the multicast copy to p3 must follow it
+		CausallyOrderedMessage first = p1.sendMessage("first", "p3");
+		CausallyOrderedMessage[] multi = p1.sendMessage("multi", new String[] { "p2", "p3", "p4" });
+
+		assertEquals(Arrays.asList((Object) "multi"), p2.recvMessage(multi[0]));
+		assertEquals(Arrays.asList((Object) "multi"), p4.recvMessage(multi[2]));
+
+		// p2 has seen the multicast, so its message to p3 must follow p3's copy
+		CausallyOrderedMessage p2p3 = p2.sendMessage("p2p3", "p3");
+
+		assertNull(p3.recvMessage(p2p3));
+		assertNull(p3.recvMessage(multi[1]));
+		assertEquals(Arrays.asList((Object) "first", "multi", "p2p3"), p3.recvMessage(first));
+	}
+
+	/**
+	 * Test method for {@link org.brann.message.CausallyOrderedMsgHandler#recvMessage(CausallyOrderedMessage, DeliveryListener)}.
+	 * payloads reach the listener in causal order, with pooled timestamps
+	 */
+	@Test
+	public void testPooledDeliveryListener() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		final List<Object> received = new ArrayList<Object>();
+		DeliveryListener listener = new DeliveryListener() {
+			public void deliver(Object payload) {
+				received.add(payload);
+			}
+		};
+
+		p1.setBinaryTimestamps(true);
+		p2.setPooledTimestamps(true);
+
+		List<Object> sent = new ArrayList<Object>();
+
+		// repeat, so timestamps given back to the pool are reused
+		for (int round = 0; round < 3; ++round) {
+			CausallyOrderedMessage[] burst = new CausallyOrderedMessage[BURST];
+
+			for (int i = 0; i < BURST; ++i) {
+				sent.add(round + "m" + i);
+				burst[i] = p1.sendMessage(round + "m" + i, "p2");
+			}
+
+			for (int i = BURST - 1; i > 0; --i)
+				assertEquals(0, p2.recvMessage(burst[i], listener));
+
+			assertEquals(BURST, p2.recvMessage(burst[0], listener));
+			assertEquals(sent, received);
+		}
+
+		// the batch form, in order
+		List<CausallyOrderedMessage> batch = new ArrayList<CausallyOrderedMessage>();
+		for (int i = 0; i < 10; ++i) {
+			sent.add("b" + i);
+			batch.add(p1.sendMessage("b" + i, "p2"));
+		}
+		assertEquals(10, p2.recvMessages(batch, listener));
+		assertEquals(sent, received);
+	}
+
+	/**
+	 * Test method for {@link org.brann.message.CausallyOrderedMsgHandler#receive(CausallyOrderedMessage)}.
+	 * a consumer thread drains payloads in causal order while they are received
+	 */
+	@Test
+	public void testDeliveryQueue() throws InterruptedException {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		final DeliveryQueue queue = new DeliveryQueue();
+		final List<Object> consumed = new ArrayList<Object>();
+
+		p2.setDeliveryListener(queue);
+
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < BURST; ++i)
+						consumed.add(queue.take());
+				} catch (InterruptedException e) {
+					// end the test
+				}
+			}
+		};
+		consumer.start();
+
+		List<Object> sent = new ArrayList<Object>();
+		CausallyOrderedMessage[] burst = new CausallyOrderedMessage[BURST];
+
+		for (int i = 0; i < BURST; ++i) {
+			sent.add("m" + i);
+			burst[i] = p1.sendMessage("m" + i, "p2");
+		}
+
+		// the second half in order, then the first half in reverse
+		for (int i = BURST / 2; i < BURST; ++i)
+			assertEquals(0, p2.receive(burst[i]));
+		for (int i = BURST / 2 - 1; i > 0; --i)
+			assertEquals(0, p2.receive(burst[i]));
+		assertEquals(BURST, p2.receive(Arrays.asList(burst[0])));
+
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals(sent, consumed);
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Test method for {@link org.brann.message.DeliveryQueue#deliver(Object)}.
+	 * a queue with a small capacity holds up the receiving thread until the
+	 * consumer takes payloads, and loses none of them
+	 */
+	@Test
+	public void testBoundedDeliveryQueue() throws InterruptedException {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		final DeliveryQueue queue = new DeliveryQueue(new ArrayBlockingQueue<Object>(2));
+		final List<Object> consumed = new ArrayList<Object>();
+
+		p2.setDeliveryListener(queue);
+
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < BURST; ++i)
+						consumed.add(queue.take());
+				} catch (InterruptedException e) {
+					// end the test
+				}
+			}
+		};
+		consumer.start();
+
+		List<Object> sent = new ArrayList<Object>();
+		CausallyOrderedMessage[] burst = new CausallyOrderedMessage[BURST];
+
+		for (int i = 0; i < BURST; ++i) {
+			sent.add("m" + i);
+			burst[i] = p1.sendMessage("m" + i, "p2");
+		}
+		for (int i = BURST - 1; i > 0; --i)
+			assertEquals(0, p2.receive(burst[i]));
+		assertEquals(BURST, p2.receive(burst[0]));
+
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals(sent, consumed);
+	}
+
+	/**
+	 * Test method for {@link org.brann.message.DeliveryQueue#deliver(Object)}.
+	 * interrupting a receive waiting on a full queue gives up the wait without
+	 * losing the payload: the next receive queues it, ahead of its own
+	 */
+	@Test(timeout = 10000)
+	public void testInterruptedDeliveryQueue() throws InterruptedException {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		final CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		final DeliveryQueue queue = new DeliveryQueue(new ArrayBlockingQueue<Object>(2));
+		final CausallyOrderedMessage[] msgs = new CausallyOrderedMessage[4];
+		final List<Exception> failures = new ArrayList<Exception>();
+
+		p2.setDeliveryListener(queue);
+		for (int i = 0; i < msgs.length; ++i)
+			msgs[i] = p1.sendMessage("m" + i, "p2");
+		assertEquals(1, p2.receive(msgs[0]));
+		assertEquals(1, p2.receive(msgs[1]));
+
+		Thread blocked = new Thread() {
+			public void run() {
+				try {
+					p2.receive(msgs[2]);
+				} catch (IllegalStateException e) {
+					failures.add(e);
+				}
+			}
+		};
+		blocked.start();
+		while (blocked.getState() != Thread.State.WAITING)
+			Thread.sleep(10);
+		blocked.interrupt();
+		blocked.join();
+
+		assertEquals(1, failures.size());
+		assertEquals(0, p2.getHeldCount());
+		assertEquals("m0", queue.take());
+		assertEquals("m1", queue.take());
+		assertEquals(2, p2.receive(msgs[3]));
+		assertEquals("m2", queue.take());
+		assertEquals("m3", queue.take());
+	}
+
+	/**
+	 * Test method for {@link org.brann.message.CausallyOrderedMsgHandler#recvMessage(CausallyOrderedMessage, DeliveryListener)}.
+	 * a listener failing while held messages are released loses none of them:
+	 * the one it failed on and those after it go to the next listener, ahead
+	 * of its own
+	 */
+	@Test
+	public void testFailingListenerKeepsHeldMessages() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+		final List<Object> delivered = new ArrayList<Object>();
+		CausallyOrderedMessage[] msgs = new CausallyOrderedMessage[5];
+
+		for (int i = 0; i < msgs.length; ++i)
+			msgs[i] = p1.sendMessage("m" + i, "p2");
+		for (int i = msgs.length - 1; i > 0; --i)
+			assertNull(p2.recvMessage(msgs[i]));
+		assertEquals(4, p2.getHeldCount());
+
+		try {
+			p2.recvMessage(msgs[0], new DeliveryListener() {
+				public void deliver(Object payload) {
+					if ("m2".equals(payload))
+						throw new IllegalStateException("listener failed");
+					delivered.add(payload);
+				}
+			});
+			fail("listener failure not passed on");
+		} catch (IllegalStateException e) {
+			// every message was taken in, m2 to m4 are still to be handed on
+		}
+		assertEquals(Arrays.asList((Object) "m0", "m1"), delivered);
+		assertEquals(0, p2.getHeldCount());
+
+		assertEquals(Arrays.asList((Object) "m2", "m3", "m4", "x"),
+				p2.recvMessage(p3.sendMessage("x", "p2")));
+	}
+
+	/**
+	 * Several threads receive one sender's messages, each its share in reverse
+	 * order, while another thread sends from the receiving process. Each
+	 * message waits on the one sent before it, whatever the receiver's sends
+	 * add to its clock.
+	 */
+	@Test
+	public void testConcurrentReceivers() throws InterruptedException {
+
+		final int threads = 4;
+		final CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		final CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		final DeliveryQueue queue = new DeliveryQueue();
+		final CausallyOrderedMessage[] burst = new CausallyOrderedMessage[BURST];
+		final List<CausallyOrderedMessage> toP3 = new ArrayList<CausallyOrderedMessage>();
+		List<Object> sent = new ArrayList<Object>();
+		List<Thread> running = new ArrayList<Thread>();
+
+		p2.setDeliveryListener(queue);
+		for (int i = 0; i < BURST; ++i) {
+			sent.add("m" + i);
+			burst[i] = p1.sendMessage("m" + i, "p2");
+		}
+
+		for (int t = 0; t < threads; ++t) {
+			final int share = t;
+
+			running.add(new Thread() {
+				public void run() {
+					for (int i = BURST - threads + share; i >= 0; i -= threads)
+						p2.receive(burst[i]);
+				}
+			});
+		}
+		running.add(new Thread() {
+			public void run() {
+				for (int i = 0; i < BURST; ++i)
+					toP3.add(p2.sendMessage("n" + i, "p3"));
+			}
+		});
+		for (Thread thread : running)
+			thread.start();
+		for (Thread thread : running)
+			thread.join(10000);
+
+		List<Object> delivered = new ArrayList<Object>();
+
+		queue.drainTo(delivered);
+		assertEquals(sent, delivered);
+
+		// p3 gets p2's messages in order, each stamped with a distinct p2 time
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		for (int i = 0; i < BURST; ++i)
+			assertEquals(Arrays.asList((Object) ("n" + i)), p3.recvMessage(toP3.get(i)));
+	}
+
+	/**
+	 * A listener runs without the handler's lock: while it is busy the
+	 * handler sends, and accepts messages on other threads, whose payloads
+	 * wait their turn behind the listener's
+	 */
+	@Test(timeout = 10000)
+	public void testListenerCalledWithoutLock() throws InterruptedException {
+
+		final CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		final CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		final CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Object> delivered = Collections.synchronizedList(new ArrayList<Object>());
+		final CausallyOrderedMessage m = p1.sendMessage("m", "p2");
+		final CausallyOrderedMessage n = p3.sendMessage("n", "p2");
+
+		Thread slow = new Thread() {
+			public void run() {
+				p2.recvMessage(m, new DeliveryListener() {
+					public void deliver(Object payload) {
+						entered.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							// end the test
+						}
+						delivered.add(payload);
+					}
+				});
+			}
+		};
+		Thread later = new Thread() {
+			public void run() {
+				delivered.addAll(p2.recvMessage(n));
+			}
+		};
+
+		slow.start();
+		entered.await();
+
+		// reply on receipt, while the listener is still busy
+		CausallyOrderedMessage reply = p2.sendMessage("reply", "p1");
+
+		later.start();
+		later.join(200);
+		assertTrue(later.isAlive());
+		assertTrue(delivered.isEmpty());
+
+		release.countDown();
+		slow.join();
+		later.join();
+		assertEquals(Arrays.asList((Object) "m", "n"), delivered);
+		assertEquals(Arrays.asList((Object) "reply"), p1.recvMessage(reply));
+	}
+
+	/**
+	 * The second message on a channel waits for the first, even when the
+	 * receiver's own sends have moved its clock on
+	 */
+	@Test
+	public void testSecondMessageWaitsForFirst() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMessage first = p1.sendMessage("first", "p2");
+		CausallyOrderedMessage second = p1.sendMessage("second", "p2");
+
+		p2.sendMessage("elsewhere", "p3");
+		assertNull(p2.recvMessage(second));
+		assertEquals(Arrays.asList((Object) "first", "second"), p2.recvMessage(first));
+	}
+
+	/**
+	 * A multicast leaves the sender's clock counting only its own events, so a
+	 * message that depends on a destination's later send is still held back
+	 */
+	@Test
+	public void testMulticastDoesNotCountDestinations() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		p3.sendMessage("hello", new String[] { "p1", "p2" });
+
+		CausallyOrderedMessage a = p1.sendMessage("a", "p3");
+
+		assertEquals(Arrays.asList((Object) "b"), p2.recvMessage(p1.sendMessage("b", "p2")));
+
+		CausallyOrderedMessage c = p2.sendMessage("c", "p3");
+
+		assertNull(p3.recvMessage(c));
+		assertEquals(Arrays.asList((Object) "a", "c"), p3.recvMessage(a));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReceiveWithoutListener() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+
+		p2.receive(p1.sendMessage("m", "p2"));
+	}
+
+	/**
+	 * Many senders' messages all wait on one message, as after a partition
+	 * heals: each sender's are delivered in the order sent once it arrives
+	 */
+	@Test
+	public void testManySendersHeld() {
+
+		final int senders = 20;
+		final int each = 50;
+		CausallyOrderedMsgHandler p0 = new CausallyOrderedMsgHandler("p0");
+		CausallyOrderedMsgHandler px = new CausallyOrderedMsgHandler("px");
+		CausallyOrderedMessage gate = px.sendMessage("gate", "p0");
+		List<CausallyOrderedMessage> arrivals = new ArrayList<CausallyOrderedMessage>();
+
+		for (int s = 0; s < senders; ++s) {
+			CausallyOrderedMsgHandler ps = new CausallyOrderedMsgHandler("s" + s);
+
+			ps.recvMessage(px.sendMessage("to s" + s, "s" + s));
+			for (int i = 0; i < each; ++i)
+				arrivals.add(ps.sendMessage("s" + s + " " + i, "p0"));
+		}
+		Collections.shuffle(arrivals, new Random(17));
+		for (CausallyOrderedMessage msg : arrivals)
+			assertNull(p0.recvMessage(msg));
+
+		List<Object> delivered = p0.recvMessage(gate);
+
+		assertEquals(1 + senders * each, delivered.size());
+		assertEquals("gate", delivered.get(0));
+		for (int s = 0; s < senders; ++s) {
+			int next = 0;
+
+			for (Object payload : delivered)
+				if (((String) payload).startsWith("s" + s + " "))
+					assertEquals("s" + s + " " + next++, payload);
+			assertEquals(each, next);
+		}
+	}
+
+	/**
+	 * An out-of-order message arriving to a full buffer is rejected, and can
+	 * be received again later
+	 */
+	@Test
+	public void testHoldBackReject() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMessage[] msgs = new CausallyOrderedMessage[4];
+
+		for (int i = 0; i < msgs.length; ++i)
+			msgs[i] = p1.sendMessage("m" + i, "p2");
+
+		p2.setHoldBackLimits(2, 0);
+		assertNull(p2.recvMessage(msgs[3]));
+		assertNull(p2.recvMessage(msgs[2]));
+		assertEquals(2, p2.getHeldCount());
+		assertTrue(p2.getHeldBytes() > 0);
+		try {
+			p2.recvMessage(msgs[1]);
+			fail("held a third message");
+		} catch (HoldBackOverflowException e) {
+			assertEquals("p1", e.getSender());
+			assertNotNull(e.getProcess());
+			assertNotNull(e.getAwaited());
+		}
+		assertEquals(2, p2.getHeldCount());
+		assertEquals(1, p2.getOverflowCount());
+
+		assertEquals(Arrays.asList((Object) "m0"), p2.recvMessage(msgs[0]));
+		assertEquals(Arrays.asList((Object) "m1", "m2", "m3"), p2.recvMessage(msgs[1]));
+		assertEquals(0, p2.getHeldCount());
+		assertEquals(0, p2.getHeldBytes());
+	}
+
+	/**
+	 * Messages rejected from a batch are reported once the rest of the batch
+	 * has been received, with the payloads delivered
+	 */
+	@Test
+	public void testHoldBackRejectBatch() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMessage[] msgs = new CausallyOrderedMessage[5];
+
+		for (int i = 0; i < msgs.length; ++i)
+			msgs[i] = p1.sendMessage("m" + i, "p2");
+
+		p2.setHoldBackLimits(1, 0);
+		try {
+			p2.recvMessages(Arrays.asList(msgs[4], msgs[3], msgs[2], msgs[0]));
+			fail("held a second message");
+		} catch (HoldBackOverflowException e) {
+			assertSame(msgs[3], e.getRejectedMessage());
+			assertEquals(1, e.getSuppressed().length);
+			assertSame(msgs[2], ((HoldBackOverflowException) e.getSuppressed()[0]).getRejectedMessage());
+			assertEquals(Arrays.asList((Object) "m0"), e.getDelivered());
+		}
+		assertEquals(1, p2.getHeldCount());
+
+		List<HoldBackOverflowException> rejections = new ArrayList<HoldBackOverflowException>();
+		final List<Object> delivered = new ArrayList<Object>();
+
+		assertEquals(2, p2.recvMessages(Arrays.asList(msgs[3], msgs[1], msgs[2]), new DeliveryListener() {
+			public void deliver(Object payload) {
+				delivered.add(payload);
+			}
+		}, rejections));
+		assertEquals(Arrays.asList((Object) "m1", "m2"), delivered);
+		assertEquals(1, rejections.size());
+		assertSame(msgs[3], rejections.get(0).getRejectedMessage());
+
+		assertEquals(Arrays.asList((Object) "m3", "m4"), p2.recvMessage(msgs[3]));
+		assertEquals(0, p2.getHeldCount());
+	}
+
+	/**
+	 * A message with a delta timestamp is held past the limit rather than
+	 * rejected, as its channel has moved on and it cannot be sent again
+	 */
+	@Test
+	public void testHoldBackDeltaNotRejected() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		p1.setDeltaTimestamps(true);
+		p2.setHoldBackLimits(1, 0);
+
+		CausallyOrderedMessage x = p3.sendMessage("x", "p2");
+
+		p1.recvMessage(p3.sendMessage("y", "p1"));
+
+		CausallyOrderedMessage a = p1.sendMessage("a", "p2");
+		CausallyOrderedMessage b = p1.sendMessage("b", "p2");
+
+		assertNull(p2.recvMessage(a));
+		assertNull(p2.recvMessage(b));
+		assertEquals(2, p2.getHeldCount());
+		assertEquals(1, p2.getOverflowCount());
+		assertEquals(Arrays.asList((Object) "x", "a", "b"), p2.recvMessage(x));
+	}
+
+	/**
+	 * The byte limit reports the message awaited
+	 */
+	@Test
+	public void testHoldBackReportMissing() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMessage[] msgs = new CausallyOrderedMessage[3];
+		final List<String> missing = new ArrayList<String>();
+
+		for (int i = 0; i < msgs.length; ++i)
+			msgs[i] = p1.sendMessage("m" + i, "p2");
+
+		p2.setOverflowPolicy(OverflowPolicy.REPORT_MISSING);
+		p2.setMissingMessageListener(new MissingMessageListener() {
+			public void missing(String sender, String process, LogicalClock awaited) {
+				missing.add(sender);
+			}
+		});
+		assertNull(p2.recvMessage(msgs[2]));
+		p2.setHoldBackLimits(0, p2.getHeldBytes());
+		assertNull(p2.recvMessage(msgs[1]));
+		assertEquals(Arrays.asList("p1"), missing);
+		assertEquals(1, p2.getHeldCount());
+
+		assertEquals(Arrays.asList((Object) "m0"), p2.recvMessage(msgs[0]));
+		assertEquals(Arrays.asList((Object) "m1", "m2"), p2.recvMessage(msgs[1]));
+	}
+
+	/**
+	 * A receiving thread blocked by a full buffer delivers once another
+	 * receives the message it waits on
+	 */
+	@Test
+	public void testHoldBackBlock() throws InterruptedException {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		final CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		final CausallyOrderedMessage[] msgs = new CausallyOrderedMessage[3];
+		DeliveryQueue queue = new DeliveryQueue();
+		List<Object> delivered = new ArrayList<Object>();
+
+		for (int i = 0; i < msgs.length; ++i)
+			msgs[i] = p1.sendMessage("m" + i, "p2");
+
+		p2.setDeliveryListener(queue);
+		p2.setHoldBackLimits(1, 0);
+		p2.setOverflowPolicy(OverflowPolicy.BLOCK);
+		assertEquals(0, p2.receive(msgs[2]));
+
+		Thread blocked = new Thread() {
+			public void run() {
+				p2.receive(msgs[1]);
+			}
+		};
+		blocked.start();
+		for (int i = 0; i < 1000 && p2.getOverflowCount() == 0; ++i)
+			Thread.sleep(10);
+		assertEquals(1, p2.getOverflowCount());
+		assertTrue(blocked.isAlive());
+
+		assertTrue(p2.receive(msgs[0]) > 0);
+		blocked.join(10000);
+		assertFalse(blocked.isAlive());
+		queue.drainTo(delivered);
+		assertEquals(Arrays.asList((Object) "m0", "m1", "m2"), delivered);
+	}
+
+	/**
+	 * Messages beyond the limit are spilled to segment files, across several
+	 * segments, and read back in causal order
+	 */
+	@Test
+	public void testHoldBackSpill() throws Exception {
+
+		File dir = File.createTempFile("spill", "");
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		List<Object> sent = new ArrayList<Object>();
+		CausallyOrderedMessage[] burst = new CausallyOrderedMessage[BURST / 4];
+
+		assertTrue(dir.delete() && dir.mkdir());
+		for (int i = 0; i < burst.length; ++i) {
+			sent.add("m" + i);
+			burst[i] = p1.sendMessage("m" + i, "p2");
+		}
+
+		p2.setHoldBackLimits(10, 0);
+		p2.setOverflowPolicy(OverflowPolicy.SPILL);
+		p2.setSpillDirectory(dir);
+		p2.setSpillSegmentSize(4096);
+		for (int i = burst.length - 1; i > 0; --i)
+			assertNull(p2.recvMessage(burst[i]));
+
+		assertEquals(burst.length - 1, p2.getHeldCount());
+		assertEquals(burst.length - 11, p2.getSpilledCount());
+		assertTrue(p2.getSpilledBytes() > 0);
+		assertTrue(dir.list().length > 1);
+
+		assertEquals(sent, p2.recvMessage(burst[0]));
+		assertEquals(0, p2.getHeldCount());
+		assertEquals(0, p2.getSpilledCount());
+		assertEquals(0, p2.getSpilledBytes());
+		assertEquals(1, dir.list().length);
+
+		// closing deletes the segments left, with messages in them or not
+		for (int i = 0; i < burst.length; ++i)
+			burst[i] = p1.sendMessage("n" + i, "p2");
+		for (int i = burst.length - 1; i > 0; --i)
+			assertNull(p2.recvMessage(burst[i]));
+		assertTrue(dir.list().length > 1);
+		p2.close();
+		assertEquals(0, dir.list().length);
+		assertTrue(dir.delete());
+	}
+
+	/**
+	 * A message the spill store cannot take is held in memory instead, and
+	 * counted as such
+	 */
+	@Test
+	public void testHoldBackSpillFails() throws Exception {
+
+		File dir = File.createTempFile("spill", "");
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		Object[] sent = new Object[4];
+		CausallyOrderedMessage[] msgs = new CausallyOrderedMessage[sent.length];
+
+		assertTrue(dir.delete() && dir.mkdir());
+		for (int i = 0; i < msgs.length; ++i) {
+			sent[i] = new Object(); // cannot be serialized
+			msgs[i] = p1.sendMessage(sent[i], "p2");
+		}
+
+		p2.setHoldBackLimits(1, 0);
+		p2.setOverflowPolicy(OverflowPolicy.SPILL);
+		p2.setSpillDirectory(dir);
+		for (int i = msgs.length - 1; i > 0; --i)
+			assertNull(p2.recvMessage(msgs[i]));
+
+		assertEquals(msgs.length - 1, p2.getHeldCount());
+		assertEquals(0, p2.getSpilledCount());
+		assertTrue(p2.getHeldBytes() > 0);
+
+		assertEquals(Arrays.asList(sent), p2.recvMessage(msgs[0]));
+		assertEquals(0, p2.getHeldCount());
+		assertEquals(0, p2.getHeldBytes());
+		p2.close();
+		for (File file : dir.listFiles())
+			file.delete();
+		assertTrue(dir.delete());
+	}
+
+	/**
+	 * A handler rebuilt from its checkpoint and log has the same clock and
+	 * held messages, and delivers as the original would
+	 */
+	@Test
+	public void testCheckpointRecovery() throws Exception {
+
+		File dir = File.createTempFile("checkpoint", "");
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMessage[] msgs = new CausallyOrderedMessage[8];
+
+		assertTrue(dir.delete() && dir.mkdir());
+		for (int i = 0; i < msgs.length; ++i)
+			msgs[i] = p1.sendMessage("m" + i, "p2");
+
+		p2.setCheckpointDirectory(dir);
+		assertEquals(Arrays.asList((Object) "m0"), p2.recvMessage(msgs[0]));
+		assertNull(p2.recvMessage(msgs[7]));
+		p2.sendMessage("to p1", "p1");
+		p2.checkpoint();
+
+		assertNull(p2.recvMessage(msgs[5]));
+		assertEquals(Arrays.asList((Object) "m1"), p2.recvMessage(msgs[1]));
+		p2.sendMessage("to p3 and p4", new String[] { "p3", "p4" });
+		assertNull(p2.recvMessage(msgs[3]));
+
+		// an incomplete record, as a crash mid-write would leave
+		FileOutputStream log = new FileOutputStream(new File(dir, "log"), true);
+		log.write(3);
+		log.close();
+
+		CausallyOrderedMsgHandler recovered = CausallyOrderedMsgHandler.recover("p2", dir);
+
+		assertEquals(p2.getClock().toJsonString(), recovered.getClock().toJsonString());
+		assertEquals(p2.getHeldCount(), recovered.getHeldCount());
+		assertEquals(p2.recvMessage(msgs[2]), recovered.recvMessage(msgs[2]));
+		assertEquals(p2.recvMessage(msgs[4]), recovered.recvMessage(msgs[4]));
+		assertEquals(p2.recvMessage(msgs[6]), recovered.recvMessage(msgs[6]));
+		assertEquals(0, recovered.getHeldCount());
+		assertEquals(p2.getClock().toJsonString(), recovered.getClock().toJsonString());
+
+		p2.setCheckpointDirectory(null);
+		recovered.setCheckpointDirectory(null);
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * A handler following its group recovers its view: the members, the
+	 * epoch, a leave it was waiting on when the snapshot was taken, and the
+	 * process retired since
+	 */
+	@Test
+	public void testCheckpointRecoversMembership() throws Exception {
+
+		File dir = File.createTempFile("checkpoint", "");
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		assertTrue(dir.delete() && dir.mkdir());
+		p1.setCheckpointDirectory(dir);
+		p1.setMembers(new String[] {"p2", "p3"});
+		p2.setMembers(new String[] {"p1", "p3"});
+		p3.setMembers(new String[] {"p1", "p2"});
+
+		CausallyOrderedMessage hello2 = p3.sendMessage("hello", "p2");
+		CausallyOrderedMessage[] bye = p3.leave();
+
+		assertEquals(1, p1.recvMessage(bye[0]).size());
+		p1.checkpoint();
+
+		CausallyOrderedMessage ack1 = p1.sendMessage("ack1", "p2");
+
+		p2.recvMessage(hello2);
+		p2.recvMessage(bye[1]);
+		p2.recvMessage(ack1);
+		assertEquals(Arrays.asList((Object) "ack2"), p1.recvMessage(p2.sendMessage("ack2", "p1")));
+		assertTrue(p1.isRetired("p3"));
+
+		CausallyOrderedMsgHandler recovered = CausallyOrderedMsgHandler.recover("p1", dir);
+
+		assertTrue(recovered.isRetired("p3"));
+		assertEquals(p1.getEpoch(), recovered.getEpoch());
+		assertEquals(p1.getMembers(), recovered.getMembers());
+		assertEquals(p1.getClock().toJsonString(), recovered.getClock().toJsonString());
+		assertEquals(Arrays.asList((Object) "m"), recovered.recvMessage(p2.sendMessage("m", "p1")));
+		assertEquals(1, recovered.leave().length);
+
+		p1.setCheckpointDirectory(null);
+		recovered.setCheckpointDirectory(null);
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * A message that cannot be logged is neither delivered nor held, leaves
+	 * the clock and the log as they were, and recovery still replays what
+	 * was logged around it
+	 */
+	@Test
+	public void testCheckpointLogFails() throws Exception {
+
+		File dir = File.createTempFile("checkpoint", "");
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMessage bad = p1.sendMessage(new Object(), "p2");
+		CausallyOrderedMessage early = p1.sendMessage(new Object(), "p2");
+
+		assertTrue(dir.delete() && dir.mkdir());
+		p2.setCheckpointDirectory(dir);
+
+		String before = p2.getClock().toJsonString();
+
+		for (CausallyOrderedMessage msg : new CausallyOrderedMessage[] { bad, early }) {
+			try {
+				p2.recvMessage(msg);
+				fail("logged a payload that cannot be serialized");
+			} catch (IllegalStateException e) {
+				// refused before the clock moved
+			}
+			assertEquals(before, p2.getClock().toJsonString());
+			assertEquals(0, p2.getHeldCount());
+		}
+
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		assertEquals(Arrays.asList((Object) "m"), p2.recvMessage(p3.sendMessage("m", "p2")));
+		p2.sendMessage("to p1", "p1");
+
+		CausallyOrderedMsgHandler recovered = CausallyOrderedMsgHandler.recover("p2", dir);
+
+		assertEquals(p2.getClock().toJsonString(), recovered.getClock().toJsonString());
+		assertEquals(2, recovered.getClock().ownerCount());
+
+		p2.setCheckpointDirectory(null);
+		recovered.setCheckpointDirectory(null);
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Delta channels are not checkpointed: a handler keeping a checkpoint
+	 * refuses delta timestamps, and one that has received them cannot start
+	 * keeping one
+	 */
+	@Test
+	public void testCheckpointRefusesDeltas() throws Exception {
+
+		File dir = File.createTempFile("checkpoint", "");
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		assertTrue(dir.delete() && dir.mkdir());
+		p1.setDeltaTimestamps(true);
+		p2.setCheckpointDirectory(dir);
+
+		CausallyOrderedMessage delta = p1.sendMessage("m0", "p2");
+		String before = p2.getClock().toJsonString();
+
+		try {
+			p2.recvMessages(Arrays.asList(p3.sendMessage("x", "p2"), delta));
+			fail("accepted a delta timestamp");
+		} catch (IllegalStateException e) {
+			// nothing in the batch is accepted
+		}
+		assertEquals(before, p2.getClock().toJsonString());
+
+		p2.setCheckpointDirectory(null);
+		assertEquals(Arrays.asList((Object) "m0"), p2.recvMessage(delta));
+		try {
+			p2.setCheckpointDirectory(dir);
+			fail("checkpointed a delta channel");
+		} catch (IllegalStateException e) {
+			// the channel's state would be lost
+		}
+
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * A reversed burst received as a single batch
+	 */
+	@Test
+	public void testBatchReversedBurst() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+
+		List<CausallyOrderedMessage> batch = new ArrayList<CausallyOrderedMessage>();
+		List<Object> sent = new ArrayList<Object>();
+
+		for (int i = 0; i < BURST; ++i) {
+			sent.add("m" + i);
+			batch.add(0, p1.sendMessage("m" + i, "p2"));
+		}
+
+		assertEquals(sent, p2.recvMessages(batch));
+	}
+
+	/**
+	 * The same exchange as testHeldMessageReleased, with binary timestamps
+	 */
+	@Test
+	public void testBinaryTimestamps() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		p1.setBinaryTimestamps(true);
+		p2.setBinaryTimestamps(true);
+
+		CausallyOrderedMessage p1p3 = p1.sendMessage("p1p3", "p3");
+		CausallyOrderedMessage p1p2 = p1.sendMessage("p1p2", "p2");
+
+		assertNotNull(p1p2.getEncodedTimestamp());
+		assertEquals(Arrays.asList((Object) "p1p2"), p2.recvMessage(p1p2));
+
+		CausallyOrderedMessage p2p3 = p2.sendMessage("p2p3", "p3");
+
+		assertNull(p3.recvMessage(p2p3));
+		assertEquals(Arrays.asList((Object) "p1p3", "p2p3"), p3.recvMessage(p1p3));
+	}
+
+	/**
+	 * Delta timestamps arriving out of sequence are rebuilt and delivered in
+	 * the order sent
+	 */
+	@Test
+	public void testDeltaTimestamps() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+
+		p1.setDeltaTimestamps(true);
+
+		// give p1 some foreign clocks to carry
+		p1.sendMessage("p1p3", "p3");
+		p1.sendMessage("p1p4", "p4");
+		p1.sendMessage("p1p5", "p5");
+
+		CausallyOrderedMessage m1 = p1.sendMessage("m1", "p2");
+		CausallyOrderedMessage m2 = p1.sendMessage("m2", "p2");
+		CausallyOrderedMessage m3 = p1.sendMessage("m3", "p2");
+
+		assertEquals(1, m1.getSequence());
+		assertEquals(3, m3.getSequence());
+		assertTrue(m3.getTimestamp().length() < m1.getTimestamp().length());
+
+		assertNull(p2.recvMessage(m3));
+		assertEquals(Arrays.asList((Object) "m1"), p2.recvMessage(m1));
+		assertEquals(Arrays.asList((Object) "m2", "m3"), p2.recvMessage(m2));
+	}
+
+	/**
+	 * A member that leaves is dropped from the clocks of the others once they
+	 * have all acknowledged the leave, and ordering still holds afterwards
+	 */
+	@Test
+	public void testLeaveRetiresProcess() {
+
+		CausallyOrderedMsgHandler p1 = new CausallyOrderedMsgHandler("p1");
+		CausallyOrderedMsgHandler p2 = new CausallyOrderedMsgHandler("p2");
+		CausallyOrderedMsgHandler p3 = new CausallyOrderedMsgHandler("p3");
+
+		p1.setMembers(new String[] {"p2", "p3"});
+		p2.setMembers(new String[] {"p1", "p3"});
+		p3.setMembers(new String[] {"p1", "p2"});
+
+		CausallyOrderedMessage hello1 = p3.sendMessage("hello", "p1");
+		CausallyOrderedMessage hello2 = p3.sendMessage("hello", "p2");
+		CausallyOrderedMessage[] bye = p3.leave();
+
+		assertEquals(Arrays.asList((Object) "hello"), p1.recvMessage(hello1));
+		assertEquals(Arrays.asList((Object) "hello"), p2.recvMessage(hello2));
+		assertEquals(1, p1.recvMessage(bye[0]).size());
+		assertEquals(2, p1.getEpoch());
+		assertEquals(new TreeSet<String>(Arrays.asList("p1", "p2")), p1.getMembers());
+
+		// p1 acknowledges to p2, which cannot deliver it before the leave
+		CausallyOrderedMessage ack1 = p1.sendMessage("ack1", "p2");
+
+		assertNull(p2.recvMessage(ack1));
+		assertEquals(2, p2.recvMessage(bye[1]).size());
+		assertFalse(p2.isRetired("p3"));
+
+		CausallyOrderedMessage ack2 = p2.sendMessage("ack2", "p1");
+
+		assertTrue(p2.isRetired("p3"));
+		assertFalse(p2.getClock().toJsonString().contains("p3"));
+		assertFalse(p1.isRetired("p3"));
+		assertEquals(Arrays.asList((Object) "ack2"), p1.recvMessage(ack2));
+		assertTrue(p1.isRetired("p3"));
+		assertFalse(p1.getClock().toJsonString().contains("p3"));
+
+		// ordering between the remaining members is unchanged
+		CausallyOrderedMessage m1 = p1.sendMessage("m1", "p2");
+		CausallyOrderedMessage m2 = p1.sendMessage("m2", "p2");
+
+		assertFalse(m1.getTimestamp().contains("p3"));
+		assertNull(p2.recvMessage(m2));
+		assertEquals(Arrays.asList((Object) "m1", "m2"), p2.recvMessage(m1));
+
+		// a process joining under the retired name is followed again
+		CausallyOrderedMsgHandler rejoined = new CausallyOrderedMsgHandler("p3");
+		CausallyOrderedMessage[] hello = rejoined.join(new String[] {"p1", "p2"});
+
+		assertEquals(1, p1.recvMessage(hello[0]).size());
+		assertFalse(p1.isRetired("p3"));
+		assertEquals(Arrays.asList((Object) "again"), p1.recvMessage(rejoined.sendMessage("again", "p1")));
+		assertTrue(p1.getClock().toJsonString().contains("p3"));
+	}
+
+	private static final int BURST = 2000;
+
+}
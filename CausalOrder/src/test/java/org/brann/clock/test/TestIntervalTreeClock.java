@@ -0,0 +1,171 @@
+package org.brann.clock.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.brann.clock.IntervalTreeClock;
+import org.junit.Test;
+
+public class TestIntervalTreeClock {
+
+	@Test
+	public void testForkTickMerge() {
+
+		IntervalTreeClock a = new IntervalTreeClock();
+		IntervalTreeClock b = a.fork();
+
+		assertFalse(a.lessThan(b));
+		assertFalse(b.lessThan(a));
+		assertFalse(a.lessThan(a));
+
+		a.tick(); // b now less than a
+		assertTrue(b.lessThan(a));
+		assertFalse(a.lessThan(b));
+
+		b.tick(); // now concurrent
+		assertFalse(a.lessThan(b));
+		assertFalse(b.lessThan(a));
+
+		b.merge(a.peek()); // a now less than b
+		assertTrue(a.lessThan(b));
+		assertTrue(a.lessThanOrEqual(b));
+		assertFalse(b.lessThanOrEqual(a));
+
+		a.merge(b.peek()); // equal
+		assertFalse(a.lessThan(b));
+		assertFalse(b.lessThan(a));
+		assertTrue(a.lessThanOrEqual(b));
+		assertTrue(b.lessThanOrEqual(a));
+	}
+
+	@Test
+	public void testCausalChain() {
+
+		IntervalTreeClock p1 = new IntervalTreeClock();
+		IntervalTreeClock p2 = p1.fork();
+		IntervalTreeClock p3 = p2.fork();
+
+		// p1 sends to p2, which sends to p3
+		p1.tick();
+		IntervalTreeClock m1 = p1.peek();
+		p2.merge(m1);
+		p2.tick();
+		IntervalTreeClock m2 = p2.peek();
+
+		assertTrue(m1.lessThan(m2));
+		assertTrue(m1.isAnonymous());
+
+		// p3 ticks on its own: concurrent with both messages
+		p3.tick();
+		assertFalse(p3.lessThan(m1));
+		assertFalse(m1.lessThan(p3));
+
+		p3.merge(m2);
+		assertTrue(m1.lessThan(p3));
+		assertTrue(m2.lessThan(p3));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAnonymousCannotTick() {
+
+		new IntervalTreeClock().peek().tick();
+	}
+
+	/**
+	 * Short-lived participants that fork, tick and are joined back leave the
+	 * clock no bigger than they found it
+	 */
+	@Test
+	public void testJoinKeepsClockSmall() {
+
+		IntervalTreeClock server = new IntervalTreeClock();
+		int start = server.encodedLength();
+
+		for (int session = 0; session < 1000; ++session) {
+
+			IntervalTreeClock client = server.fork();
+			IntervalTreeClock before = server.peek();
+
+			client.tick();
+			assertTrue(before.lessThan(client));
+			server.join(client);
+			assertTrue(client.isAnonymous());
+			server.tick();
+		}
+
+		assertFalse(server.isAnonymous());
+		assertTrue(server.encodedLength() <= start + 2);
+		// each tick of the whole interval covers the client's event joined before it
+		assertEquals("{\"ID\":1,\"EV\":1000}", server.toJsonString());
+	}
+
+	@Test
+	public void testToFromJson() throws IOException {
+
+		IntervalTreeClock a = new IntervalTreeClock();
+		IntervalTreeClock b = a.fork();
+		IntervalTreeClock c = b.fork();
+
+		a.tick();
+		b.tick();
+		b.tick();
+		c.merge(a.peek());
+		c.tick();
+
+		IntervalTreeClock copy = new IntervalTreeClock(c.toString());
+
+		assertEquals(c.toJsonString(), copy.toJsonString());
+		assertFalse(copy.lessThan(c));
+		assertFalse(c.lessThan(copy));
+
+		byte[] json = c.toJsonString().getBytes("UTF-8");
+		ByteBuffer direct = ByteBuffer.allocateDirect(json.length);
+		direct.put(json).flip();
+
+		assertEquals(c.toJsonString(), IntervalTreeClock.parseJson(json).toJsonString());
+		assertEquals(c.toJsonString(), IntervalTreeClock.parseJson(direct).toJsonString());
+		assertEquals(c.toJsonString(),
+				IntervalTreeClock.parseJson(new ByteArrayInputStream(json)).toJsonString());
+
+		IntervalTreeClock bad = new IntervalTreeClock("not good json");
+		assertTrue(bad.isAnonymous());
+		assertFalse(bad.lessThan(new IntervalTreeClock()));
+	}
+
+	@Test
+	public void testEncodeDecode() {
+
+		IntervalTreeClock a = new IntervalTreeClock();
+		IntervalTreeClock b = a.fork();
+
+		a.tick();
+		b.tick();
+		b.tick();
+		b.merge(a.peek());
+
+		byte[] encoded = b.toBytes();
+
+		assertEquals(encoded.length, b.encodedLength());
+
+		ByteBuffer buf = ByteBuffer.allocate(encoded.length + 1);
+		b.encode(buf);
+		assertEquals(encoded.length, buf.position());
+		buf.flip();
+
+		IntervalTreeClock copy = new IntervalTreeClock(buf);
+
+		assertEquals(b.toJsonString(), copy.toJsonString());
+		assertFalse(buf.hasRemaining());
+
+		// the copy keeps the identity, and can tick
+		copy.tick();
+		assertTrue(b.lessThan(copy));
+
+		IntervalTreeClock truncated = new IntervalTreeClock(ByteBuffer.wrap(encoded, 0,
+				encoded.length - 1));
+		assertTrue(truncated.isAnonymous());
+	}
+}
@@ -5,6 +5,8 @@ package org.brann.clock.test;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+
 import org.brann.clock.LogicalClock;
 import org.brann.clock.TextConstants;
 import org.junit.Test;
@@ -109,4 +111,75 @@ public class TestLogicalClock {
 		
 	}
 
+	/**
+	 * Test method for {@link org.brann.clock.LogicalClock#encode(ByteBuffer)}.
+	 */
+	@Test
+	public void testEncodeDecode() {
+
+		LogicalClock a = new LogicalClock();
+		for (int i=0;i<300;++i) a.tick();
+
+		ByteBuffer buf = ByteBuffer.allocate(a.encodedLength());
+		a.encode(buf);
+		assertFalse(buf.hasRemaining());
+
+		buf.flip();
+		LogicalClock b = new LogicalClock(buf);
+		assertFalse(a.isLessThan(b));
+		assertFalse(b.isLessThan(a));
+
+		// a value that has outgrown a long
+		a = new LogicalClock("{\""+TextConstants.LAMPORT_LOGICAL_CLOCK+"\":[7,"+Integer.MAX_VALUE+","+Integer.MAX_VALUE+"]}");
+		b = new LogicalClock(ByteBuffer.wrap(a.toBytes()));
+		assertFalse(a.isLessThan(b));
+		assertFalse(b.isLessThan(a));
+		assertEquals(a.toString(), b.toString());
+		assertEquals("{\""+TextConstants.LAMPORT_LOGICAL_CLOCK+"\":[7,"+Integer.MAX_VALUE+","+Integer.MAX_VALUE+"]}", a.toJsonString());
+		assertEquals(a.toString(), new LogicalClock(a.toJsonString()).toString());
+
+		/*  bad or truncated input is the equivalent of creating an un-initialized clock */
+		byte[] truncated = a.toBytes();
+		b = new LogicalClock(ByteBuffer.wrap(truncated, 0, truncated.length - 1));
+		assertFalse(b.isLessThan(new LogicalClock()));
+		assertFalse(new LogicalClock().isLessThan(b));
+	}
+
+	/**
+	 * Test method for {@link org.brann.clock.ClockOperations#tick()} when the
+	 * value outgrows a long.
+	 */
+	@Test
+	public void testTickBeyondLong() {
+
+		// Long.MAX_VALUE in 'digits'
+		String maxLong = "{\""+TextConstants.LAMPORT_LOGICAL_CLOCK+"\":[1,"+Integer.MAX_VALUE+","+Integer.MAX_VALUE+"]}";
+
+		LogicalClock a = new LogicalClock(maxLong);
+		LogicalClock b = new LogicalClock(maxLong);
+
+		assertFalse(a.isLessThan(b));
+		assertFalse(b.isLessThan(a));
+
+		b.tick();
+		assertTrue(a.isLessThan(b));
+		assertFalse(b.isLessThan(a));
+
+		LogicalClock c = new LogicalClock(b.toString());
+		assertFalse(b.isLessThan(c));
+		assertFalse(c.isLessThan(b));
+		assertTrue(a.isLessThan(c));
+
+		c.tick();
+		assertTrue(b.isLessThan(c));
+		assertTrue(new LogicalClock().isLessThan(c));
+		assertFalse(c.isLessThan(new LogicalClock()));
+
+		// leading zero 'digits' do not change the value
+		a = new LogicalClock("{\""+TextConstants.LAMPORT_LOGICAL_CLOCK+"\":[0,0,5]}");
+		b = new LogicalClock("{\""+TextConstants.LAMPORT_LOGICAL_CLOCK+"\":[5]}");
+		assertFalse(a.isLessThan(b));
+		assertFalse(b.isLessThan(a));
+	}
+
 }
@@ -0,0 +1,195 @@
+package org.brann.clock.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.brann.clock.MatrixClock;
+import org.junit.Test;
+
+public class TestMatrixClock {
+
+	/**
+	 * send a copy of the sender's clock, as on a message, and receive it
+	 */
+	private static void send(MatrixClock from, MatrixClock to) {
+
+		from.tick();
+
+		MatrixClock onMessage = (MatrixClock) from.clone();
+
+		to.merge(onMessage);
+		to.tick();
+	}
+
+	private static MatrixClock[] group(String... names) {
+
+		MatrixClock[] clocks = new MatrixClock[names.length];
+
+		for (int i = 0; i < names.length; ++i) {
+			clocks[i] = new MatrixClock(names[i]);
+			for (String other : names)
+				clocks[i].addProcess(other);
+		}
+		return clocks;
+	}
+
+	@Test
+	public void testTickMergeLessThan() {
+
+		MatrixClock p1 = new MatrixClock("p1");
+		MatrixClock p2 = new MatrixClock("p2");
+
+		assertFalse(p1.lessThan(p2));
+		assertFalse(p1.lessThan(p1));
+
+		p1.tick();
+		assertTrue(p2.lessThan(p1));
+		assertFalse(p1.lessThan(p2));
+
+		p2.merge(p1);
+		p2.tick();
+		assertTrue(p1.lessThan(p2));
+		assertEquals(1, p2.countFor("p1", "p1"));
+		assertEquals(1, p2.countFor("p2", "p2"));
+	}
+
+	@Test
+	public void testStability() {
+
+		MatrixClock[] g = group("p1", "p2", "p3");
+		MatrixClock p1 = g[0], p2 = g[1], p3 = g[2];
+
+		// p1 multicasts its first message to p2 and p3
+		p1.tick();
+		MatrixClock m = (MatrixClock) p1.clone();
+		p2.merge(m);
+		p2.tick();
+		p3.merge(m);
+		p3.tick();
+
+		// nobody knows that everyone has it yet
+		assertFalse(p1.isStable("p1", 1));
+		assertFalse(p2.isStable("p1", 1));
+
+		// p2 tells p3, and p3 then tells p1
+		send(p2, p3);
+		assertTrue(p3.isStable("p1", 1));
+		send(p3, p1);
+
+		// p1 now knows p2 and p3 have both seen its message, second hand for p2
+		assertTrue(p1.isStable("p1", 1));
+		assertFalse(p1.isStable("p1", 2));
+		assertEquals(1, p1.stableCount("p1"));
+
+		// as has p2's message to p3, but not p3's own to p1
+		assertEquals(2, p1.stableCount("p2"));
+		assertEquals(0, p1.stableCount("p3"));
+		assertEquals("{\"VC\":[{\"PID\":\"p1\",\"LLC\":[1]},{\"PID\":\"p2\",\"LLC\":[2]}]}",
+				p1.stable().toJsonString());
+
+		// p2 still has no word from p3
+		assertFalse(p2.isStable("p1", 1));
+	}
+
+	@Test
+	public void testUnknownProcessBlocksStability() {
+
+		MatrixClock p1 = new MatrixClock("p1");
+		MatrixClock p2 = new MatrixClock("p2");
+
+		send(p1, p2);
+		send(p2, p1);
+		assertTrue(p1.isStable("p1", 1));
+
+		// once p3 is known to be in the group nothing is stable until it has
+		// seen it
+		p1.addProcess("p3");
+		assertFalse(p1.isStable("p1", 1));
+
+		p1.removeProcess("p3");
+		assertTrue(p1.isStable("p1", 1));
+	}
+
+	/**
+	 * A process removed from the group stays out of it when clocks that still
+	 * know of it are merged, until it is added again
+	 */
+	@Test
+	public void testMergeAfterRemoveProcess() {
+
+		MatrixClock p1 = new MatrixClock("p1");
+		MatrixClock p2 = new MatrixClock("p2");
+		MatrixClock p3 = new MatrixClock("p3");
+
+		send(p3, p2);
+		send(p2, p1);
+		send(p1, p2);
+		p1.removeProcess("p3");
+
+		// p2 has not removed p3, and still has a row and a clock for it
+		send(p2, p1);
+		assertFalse(p1.toJsonString().contains("p3"));
+		assertEquals(0, p1.getVector().countFor("p3"));
+		assertTrue(p1.isStable("p1", 1));
+
+		// nor does a message from p3 itself bring it back
+		send(p3, p1);
+		assertFalse(p1.toJsonString().contains("p3"));
+
+		p1.addProcess("p3");
+		send(p3, p1);
+		assertEquals(3, p1.getVector().countFor("p3"));
+		assertFalse(p1.isStable("p1", 1));
+	}
+
+	@Test
+	public void testToFromJson() throws IOException {
+
+		MatrixClock[] g = group("p1", "p2", "p3");
+
+		send(g[0], g[1]);
+		send(g[1], g[2]);
+
+		MatrixClock copy = new MatrixClock(null, g[2].toString());
+
+		assertEquals(g[2].toJsonString(), copy.toJsonString());
+		assertEquals("p3", copy.getOwner());
+		assertEquals(g[2].toJsonString(),
+				MatrixClock.parseJson(null, g[2].toJsonString().getBytes("UTF-8")).toJsonString());
+
+		// read as another owner, the clock read is what is known of its writer
+		MatrixClock other = new MatrixClock("p1", g[2].toJsonString());
+
+		assertEquals("p1", other.getOwner());
+		assertEquals(0, other.countFor("p1", "p3"));
+		assertEquals(1, other.countFor("p3", "p3"));
+		assertEquals(1, other.countFor("p2", "p1"));
+
+		MatrixClock bad = new MatrixClock("p1", "not good json");
+		assertEquals(0, bad.countFor("p1", "p1"));
+	}
+
+	@Test
+	public void testEncodeDecode() {
+
+		MatrixClock[] g = group("p1", "p2", "p3");
+
+		send(g[0], g[1]);
+		send(g[1], g[2]);
+
+		byte[] encoded = g[2].toBytes();
+
+		assertEquals(encoded.length, g[2].encodedLength());
+
+		MatrixClock copy = new MatrixClock(null, ByteBuffer.wrap(encoded));
+
+		assertEquals(g[2].toJsonString(), copy.toJsonString());
+
+		MatrixClock truncated = new MatrixClock(null,
+				ByteBuffer.wrap(encoded, 0, encoded.length - 1));
+
+		assertEquals(0, truncated.countFor("p3", "p3"));
+	}
+}
@@ -2,6 +2,11 @@ package org.brann.clock.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.brann.clock.LogicalClock;
 import org.brann.clock.TextConstants;
 import org.brann.clock.VectorClock;
 import org.junit.Test;
@@ -41,6 +46,38 @@ public class TestVectorClock {
         
 	}
 
+	@Test
+	public void testCloneDuringTicks() throws InterruptedException {
+
+		final VectorClock foo = initVc();
+		final int TICKS = 20000;
+
+		Thread ticker = new Thread() {
+			public void run() {
+				for (int i = 0; i < TICKS; ++i) {
+					foo.tick("foo");
+					foo.tick("bar");
+				}
+			}
+		};
+		ticker.start();
+
+		// a clone taken while the other thread ticks is a snapshot - it never
+		// runs ahead of the clock it was taken from
+		VectorClock earlier = (VectorClock) foo.clone();
+		while (ticker.isAlive()) {
+			VectorClock later = (VectorClock) foo.clone();
+			assertFalse(later.lessThan(earlier));
+			assertFalse(foo.lessThan(later));
+			earlier = later;
+		}
+		ticker.join();
+
+		VectorClock done = new VectorClock(foo.toString());
+		assertFalse(foo.lessThan(done));
+		assertFalse(done.lessThan(foo));
+	}
+
 	@Test
 	public void testToStringFromString() {
 		
@@ -64,6 +101,117 @@ public class TestVectorClock {
 		
 	}
 
+	@Test
+	public void testParseJson() throws IOException {
+
+		VectorClock foo = initVc();
+		foo.tick("foo");
+		foo.tick("bar");
+
+		byte[] json = foo.toJsonString().getBytes("UTF-8");
+		ByteBuffer direct = ByteBuffer.allocateDirect(json.length);
+		direct.put(json).flip();
+
+		assertEquals(foo.toString(), VectorClock.parseJson(json).toString());
+		assertEquals(foo.toString(), VectorClock.parseJson(direct).toString());
+		assertEquals(foo.toString(), VectorClock.parseJson(new ByteArrayInputStream(json)).toString());
+	}
+
+	@Test
+	public void testEncodeDecode() {
+
+		VectorClock foo = initVc();
+		foo.tick("foo");
+		foo.tick("bar");
+
+		VectorClock bar = new VectorClock(ByteBuffer.wrap(foo.toBytes()));
+		assertFalse(foo.lessThan(bar));
+		assertFalse(bar.lessThan(foo));
+		assertEquals(foo.toString(), bar.toString());
+		assertEquals(foo.encodedLength(), foo.toBytes().length);
+
+		bar.tick("bar");
+		assertTrue(foo.lessThan(bar));
+
+		// bad input is the equivalent of an empty clock
+		bar = new VectorClock(ByteBuffer.wrap(new byte[] { 99 }));
+		assertTrue(bar.lessThan(foo));
+	}
+
+	@Test
+	public void testLessThanAbsentEntry() {
+
+		VectorClock foo = initVc();
+		VectorClock bar = initVc();
+
+		bar.tick("bar"); // only bar has a "bar" entry, and it is the only difference
+		assertTrue(foo.lessThan(bar));
+		assertFalse(bar.lessThan(foo));
+
+		foo.tick("quux"); // now each has an entry the other lacks
+		assertFalse(foo.lessThan(bar));
+		assertFalse(bar.lessThan(foo));
+	}
+
+	/**
+	 * A Logical Clock at the limit of a long cannot be ticked, and one beyond
+	 * it cannot be stored, rather than wrap to a value less than before
+	 */
+	@Test
+	public void testTickBeyondLong() {
+
+		String maxLong = "{\""+TextConstants.LAMPORT_LOGICAL_CLOCK+"\":[1,"+Integer.MAX_VALUE+","+Integer.MAX_VALUE+"]}";
+		VectorClock foo = new VectorClock("{\""+TextConstants.VECTOR_CLOCK+"\":[{\""+
+				TextConstants.PROCESS_ID+"\":\"foo\","+maxLong.substring(1, maxLong.length() - 1)+"}]}");
+		VectorClock before = (VectorClock) foo.clone();
+
+		assertEquals(Long.MAX_VALUE, foo.countFor("foo"));
+		try {
+			foo.tick("foo");
+			fail("ticked past Long.MAX_VALUE");
+		} catch (ArithmeticException e) {
+			// the clock is unchanged
+		}
+		assertEquals(Long.MAX_VALUE, foo.countFor("foo"));
+		assertFalse(foo.lessThan(before));
+
+		final LogicalClock beyond = new LogicalClock(maxLong);
+
+		beyond.tick();
+		try {
+			new VectorClock() {
+				{
+					setClockFor("foo", beyond);
+				}
+			};
+			fail("stored a Logical Clock beyond a long");
+		} catch (IllegalArgumentException e) {
+			// not truncated
+		}
+	}
+
+	@Test
+	public void testIsNextFrom() {
+
+		VectorClock known = initVc();
+		VectorClock stamp = initVc();
+
+		assertFalse(stamp.isNextFrom("bar", known));
+
+		stamp.tick("bar"); // bar's first event, absent from known
+		assertTrue(stamp.isNextFrom("bar", known));
+		assertFalse(stamp.isNextFrom("foo", known));
+
+		stamp.tick("bar"); // one event of bar missing
+		assertFalse(stamp.isNextFrom("bar", known));
+
+		known.tick("bar");
+		assertTrue(stamp.isNextFrom("bar", known));
+
+		stamp.tick("foo"); // depends on an event of foo not known
+		assertFalse(stamp.isNextFrom("bar", known));
+	}
+
 	private VectorClock initVc() {
 		VectorClock foo = new VectorClock ("{\""+
         		TextConstants.VECTOR_CLOCK+"\":[{\""+TextConstants.PROCESS_ID+"\":\"foo\",\""+
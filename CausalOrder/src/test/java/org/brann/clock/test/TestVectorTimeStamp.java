@@ -5,6 +5,13 @@ package org.brann.clock.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import org.brann.clock.VectorTimeStamp;
 import org.junit.Test;
 
@@ -74,6 +81,284 @@ public class TestVectorTimeStamp {
 		
 	}
 	
+	/**
+	 * The foreign clock for a process is dropped once a message from it shows
+	 * it has passed the clock, and not before
+	 */
+	@Test
+	public void testPrune() {
+
+		VectorTimeStamp p1 = new VectorTimeStamp("p1");
+		VectorTimeStamp p2 = new VectorTimeStamp("p2");
+
+		// p1 sends to p2 twice
+		VectorTimeStamp first = new VectorTimeStamp(p1);
+		p1.insertClockFor("p2");
+		p1.tick();
+		p1.insertClockFor("p3");
+		p1.tick();
+		VectorTimeStamp second = new VectorTimeStamp(p1);
+		p1.insertClockFor("p2");
+		p1.tick();
+
+		// p2 receives the first only and replies
+		assertTrue(p2.inCausalOrder(first));
+		p2.mergeLocal(first);
+		p2.mergeOther(first);
+		p2.tick();
+		VectorTimeStamp reply = new VectorTimeStamp(p2);
+		p2.insertClockFor("p1");
+		p2.tick();
+
+		// the reply has not passed p1's second constraint on p2
+		int length = p1.toBytes().length;
+		p1.mergeLocal(reply);
+		p1.mergeOther(reply);
+		p1.prune(reply);
+		assertTrue(p1.toJsonString().contains("{\"PID\":\"p2\",\"VC\""));
+
+		// p2 receives the second and replies again
+		assertTrue(p2.inCausalOrder(second));
+		p2.mergeLocal(second);
+		p2.mergeOther(second);
+		p2.tick();
+		reply = new VectorTimeStamp(p2);
+
+		p1.mergeLocal(reply);
+		p1.mergeOther(reply);
+		p1.prune(reply);
+		assertFalse(p1.toJsonString().contains("{\"PID\":\"p2\",\"VC\""));
+		assertTrue(p1.toJsonString().contains("{\"PID\":\"p3\",\"VC\""));
+		assertTrue(p1.toBytes().length < length);
+	}
+
+	/**
+	 * Test method for {@link org.brann.clock.VectorTimeStamp#encode(ByteBuffer)}.
+	 */
+	@Test
+	public void testEncodeDecode() {
+
+		VectorTimeStamp a = new VectorTimeStamp(null, "{\"O_PID\" : \"p2\",\"VC\" : [ {\"PID\" : \"p1\",\"LLC\" : [ 1 ]" +
+				  "}, {\"PID\" : \"p2\",\"LLC\" : [ 2 ]} ],\"FC\" : [ {\"PID\" : \"p3\",\"VC\" : [ {\"PID\" : \"p1\"," +
+				  "\"LLC\" : [ 1 ]}, {\"PID\" : \"p2\",\"LLC\" : [ 1 ]} ]} ]}");
+
+		ByteBuffer buf = ByteBuffer.allocate(a.encodedLength() + 1);
+		buf.put((byte) 0);
+		a.encode(buf);
+		buf.flip();
+		buf.get();
+
+		VectorTimeStamp b = new VectorTimeStamp(null, buf);
+		assertFalse(buf.hasRemaining());
+		assertEquals(a.toString(), b.toString());
+		assertTrue(a.toBytes().length < a.toString().length() / 4);
+
+		// the foreign clock for p3 is carried across
+		VectorTimeStamp p3 = new VectorTimeStamp("p3");
+		assertFalse(p3.inCausalOrder(b));
+		p3.tick();
+		p3.tick();
+		p3.mergeLocal(b);
+		assertTrue(p3.inCausalOrder(b));
+
+		// truncated input is the equivalent of an empty stamp
+		byte[] truncated = a.toBytes();
+		b = new VectorTimeStamp("empty", ByteBuffer.wrap(truncated, 0, truncated.length / 2));
+		assertTrue(b.inCausalOrder(a));
+		assertTrue(a.inCausalOrder(b));
+	}
+
+	/**
+	 * Test method for {@link org.brann.clock.VectorTimeStamp#writeJson(ByteBuffer)}.
+	 * compact output to each kind of target parses to the same timestamp
+	 */
+	@Test
+	public void testWriteJson() throws IOException {
+
+		VectorTimeStamp a = new VectorTimeStamp("p1");
+		a.tick();
+		a.insertClockFor("p2");
+		a.tick();
+		a.insertClockFor("p3");
+
+		String compact = a.toJsonString();
+		assertTrue(compact.length() < a.toString().length());
+		assertEquals(-1, compact.indexOf('\n'));
+		assertEquals(a.toString(), new VectorTimeStamp(null, compact).toString());
+
+		StringWriter sw = new StringWriter();
+		sw.write("[");
+		a.writeJson(sw);
+		sw.write("]");
+		assertEquals("[" + compact + "]", sw.toString());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		a.writeJson(out);
+		assertEquals(compact, out.toString("UTF-8"));
+
+		ByteBuffer buf = ByteBuffer.allocate(compact.length() + 1);
+		buf.put((byte) '[');
+		a.writeJson(buf);
+		assertFalse(buf.hasRemaining());
+		assertEquals("[" + compact, new String(buf.array(), "UTF-8"));
+
+		try {
+			a.writeJson(ByteBuffer.allocate(compact.length() - 1));
+			fail("output should not fit");
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test method for {@link org.brann.clock.VectorTimeStamp#parseJson(String, ByteBuffer)}.
+	 * JSON bytes parse without being decoded to a String first
+	 */
+	@Test
+	public void testParseJson() throws IOException {
+
+		VectorTimeStamp a = new VectorTimeStamp("p1");
+		a.tick();
+		a.insertClockFor("p2");
+		a.tick();
+
+		String expected = a.toString();
+		byte[] utf8 = a.toJsonString().getBytes("UTF-8");
+
+		assertEquals(expected, VectorTimeStamp.parseJson(null, utf8).toString());
+		assertEquals(expected, VectorTimeStamp.parseJson(null, expected.getBytes("UTF-16BE")).toString());
+
+		// a slice of a larger heap buffer
+		ByteBuffer heap = ByteBuffer.allocate(utf8.length + 4);
+		heap.put(new byte[] { 'x', 'x' }).put(utf8).put(new byte[] { 'y', 'y' });
+		heap.position(2).limit(2 + utf8.length);
+		assertEquals(expected, VectorTimeStamp.parseJson(null, heap.slice()).toString());
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+		direct.put(utf8).flip();
+		assertEquals(expected, VectorTimeStamp.parseJson(null, direct).toString());
+		assertFalse(direct.hasRemaining());
+
+		final boolean[] closed = { false };
+		ByteArrayInputStream in = new ByteArrayInputStream(utf8) {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		assertEquals(expected, VectorTimeStamp.parseJson(null, in).toString());
+		assertFalse(closed[0]);
+
+		// ownership is corrected as for the String constructor
+		VectorTimeStamp p2 = VectorTimeStamp.parseJson("p2", utf8);
+		assertEquals(new VectorTimeStamp("p2", a.toString()).toString(), p2.toString());
+
+		// bad input is the equivalent of an empty stamp
+		VectorTimeStamp bad = VectorTimeStamp.parseJson("bad", new byte[] { '{', '"', 'x' });
+		assertTrue(bad.inCausalOrder(a));
+	}
+
+	/**
+	 * Test method for {@link org.brann.clock.VectorTimeStamp#reset(String, ByteBuffer)}.
+	 * a reset timestamp is the same as a new one built from the same arguments
+	 */
+	@Test
+	public void testReset() {
+
+		VectorTimeStamp a = new VectorTimeStamp("p1");
+		a.tick();
+		a.insertClockFor("p2");
+		a.tick();
+		a.insertClockFor("p3");
+
+		VectorTimeStamp reused = new VectorTimeStamp("p2");
+		reused.tick();
+		reused.insertClockFor("p4");
+
+		reused.reset(null, a.toJsonString());
+		assertEquals(a.toString(), reused.toString());
+
+		reused.reset("p5", ByteBuffer.wrap(a.toBytes()));
+		assertEquals(new VectorTimeStamp("p5", ByteBuffer.wrap(a.toBytes())).toString(), reused.toString());
+
+		// a copy made before the reset keeps its clocks
+		VectorTimeStamp copy = new VectorTimeStamp(reused);
+		String before = copy.toString();
+		reused.reset(null, ByteBuffer.wrap(new byte[] { 3 }));
+		assertEquals(before, copy.toString());
+		assertEquals(new VectorTimeStamp(null, ByteBuffer.wrap(new byte[] { 3 })).toString(), reused.toString());
+
+		reused.reset("p6");
+		assertEquals(new VectorTimeStamp("p6").toString(), reused.toString());
+	}
+
+	/**
+	 * Test method for {@link org.brann.clock.VectorTimeStamp#VectorTimeStamp(VectorTimeStamp)}.
+	 * a copy shares the source's clocks, so neither may see the other's updates
+	 */
+	@Test
+	public void testCopyIsIndependent() {
+
+		VectorTimeStamp p1 = new VectorTimeStamp("p1");
+		VectorTimeStamp p2 = new VectorTimeStamp("p2");
+		p1.tick();
+		p1.insertClockFor("p3");
+
+		VectorTimeStamp copy = new VectorTimeStamp(p1);
+		String before = copy.toString();
+		assertEquals(p1.toString(), before);
+
+		// update the source's own clock, its foreign clocks and add a new one
+		p2.tick();
+		p2.insertClockFor("p3");
+		p2.tick();
+		p1.mergeLocal(p2);
+		p1.mergeOther(p2);
+		p1.insertClockFor("p4");
+		p1.tick();
+		assertEquals(before, copy.toString());
+
+		// and the other way round
+		before = p1.toString();
+		copy.mergeOther(p2);
+		copy.insertClockFor("p5");
+		copy.tick();
+		assertEquals(before, p1.toString());
+	}
+
+	/**
+	 * Test method for {@link org.brann.clock.VectorTimeStamp#insertClockFor(String)}.
+	 * many sends in a row, each inserting a clock over the one the last
+	 * message shares, leave every message's timestamp as it was sent
+	 */
+	@Test
+	public void testRepeatedSends() {
+
+		VectorTimeStamp p1 = new VectorTimeStamp("p1");
+		VectorTimeStamp p2 = new VectorTimeStamp("p2");
+		VectorTimeStamp[] sent = new VectorTimeStamp[40];
+		String[] asSent = new String[sent.length];
+
+		for (int i = 0; i < sent.length; ++i) {
+			sent[i] = new VectorTimeStamp(p1);
+			asSent[i] = sent[i].toString();
+			p1.insertClockFor("p" + (2 + i % 5));
+			p1.tick();
+		}
+		for (int i = 0; i < sent.length; ++i)
+			assertEquals(asSent[i], sent[i].toString());
+
+		VectorTimeStamp last = new VectorTimeStamp(p1);
+		assertEquals(p1.toString(), new VectorTimeStamp(null, p1.toString()).toString());
+
+		// and the sender can still take in what it receives
+		p2.tick();
+		p2.insertClockFor("p7");
+		p1.mergeLocal(p2);
+		p1.mergeOther(p2);
+		assertTrue(last.toString().length() < p1.toString().length());
+	}
+
 	/**
 	 * Test method for {@link org.brann.clock.VectorTimeStamp#VectorTimeStamp(String, String)}.
 	 * to test various failure scenarios when rebuilding from JSON
@@ -7,19 +7,39 @@ import org.brann.clock.VectorTimeStamp;
 import org.brann.message.*;
 
 public class Testbed {
+
+	private static boolean binary = false;
+	private static boolean delta = false;
+
+	private static CausallyOrderedMsgHandler newHandler(String name) {
+		CausallyOrderedMsgHandler handler = new CausallyOrderedMsgHandler(name);
+		handler.setBinaryTimestamps(binary);
+		handler.setDeltaTimestamps(delta);
+		return handler;
+	}
+
 	public static void main(String[] args) {
 		HashMap<String, CausallyOrderedMsgHandler> processes = new HashMap<String, CausallyOrderedMsgHandler>();
 		HashMap<String, CausallyOrderedMessage> messages = new HashMap<String, CausallyOrderedMessage>();
 
 		long b4 = System.currentTimeMillis();
 
-		if (args.length < 1) {
-			System.out.println("Usage: <program> file");
+		int argn = 0;
+
+		for (; argn < args.length && args[argn].startsWith("-"); ++argn) {
+			if (args[argn].compareTo("-binary") == 0)
+				binary = true;
+			else if (args[argn].compareTo("-delta") == 0)
+				delta = true;
+		}
+
+		if (args.length <= argn) {
+			System.out.println("Usage: <program> [-binary] [-delta] file");
 			System.exit(1);
 		}
 
 		try {
-			FileReader fr = new FileReader(args[0]);
+			FileReader fr = new FileReader(args[argn]);
 			BufferedReader br = new BufferedReader(fr);
 			String line;
 			String cmd;
@@ -54,19 +74,16 @@ public class Testbed {
 						msgname = st.nextToken();
 
 						if (!processes.containsKey(from))
-							processes.put(from, new CausallyOrderedMsgHandler(
-									from));
+							processes.put(from, newHandler(from));
 
 						if (to != null) {
 							if (!processes.containsKey(to))
-								processes.put(to,
-										new CausallyOrderedMsgHandler(to));
+								processes.put(to, newHandler(to));
 						} else
 							for (int loop = 0; loop < multiTo.length; ++loop)
 								if (!processes.containsKey(multiTo[loop]))
 									processes.put(multiTo[loop],
-											new CausallyOrderedMsgHandler(
-													multiTo[loop]));
+											newHandler(multiTo[loop]));
 
 						if (multiTo != null) {
 							for (int loop = 0; loop < multiTo.length; ++loop)
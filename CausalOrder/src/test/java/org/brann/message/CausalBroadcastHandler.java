@@ -0,0 +1,230 @@
+package org.brann.message;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.brann.clock.VectorClock;
+
+/**
+ * A helper class that manages the control of causally ordered broadcast
+ * messages. The Birman-Schiper-Stephenson protocol is used to implement the
+ * ordering.
+ *
+ * Every message is broadcast to the whole group, so a single vector clock
+ * orders it: the handler's clock counts the messages it has delivered from
+ * each process, and the messages it has broadcast itself. A message carries
+ * its sender's clock, and is delivered once it is the next message from its
+ * sender and every message its sender had delivered before broadcasting it
+ * has been delivered here. Out-of-order messages are held back. Compared with
+ * the Schiper-Eggli-Sandoz multicast in CausallyOrderedMsgHandler, the
+ * timestamp is one vector, not one for each destination, and the same
+ * message goes to every member.
+ *
+ * The transport is to send each message to every other member of the group.
+ * A handler does not deliver its own messages, and a message it has already
+ * delivered, or its own message received back, is discarded.
+ *
+ * A handler may be shared by any number of sending and receiving threads.
+ * Timestamps are decoded and encoded outside the handler's lock - the lock on
+ * its clock - which is held only to check order, update the clock and the
+ * held messages, and call the delivery listener.
+ * @author John Brann
+ * @see VectorClock
+ * @see CausallyOrderedMsgHandler
+ */
+public class CausalBroadcastHandler {
+
+    private String name;
+	public String getName() {
+		return name;
+	}
+
+	private VectorClock clock;
+	private Map<String, TreeMap<Long, CausalBroadcastMessage>> held = new HashMap<String, TreeMap<Long, CausalBroadcastMessage>>();
+	private int heldCount;
+	private boolean binaryTimestamps;
+
+	/**
+	 * Choose the form of timestamp put on outgoing messages: the compact binary
+	 * encoding, or JSON (the default). Received messages are decoded in
+	 * whichever form they carry.
+	 * @param binary true to send binary timestamps
+	 */
+	public void setBinaryTimestamps(boolean binary) {
+		binaryTimestamps = binary;
+	}
+
+	public boolean isBinaryTimestamps() {
+		return binaryTimestamps;
+	}
+
+	/**
+	 * @return the number of out-of-order messages held back
+	 */
+	public int getHeldCount() {
+		synchronized (clock) {
+			return heldCount;
+		}
+	}
+
+    /**
+     * Timestamp a payload for broadcast to every other member of the group
+     * @param payload the message payload
+     * @return the message, to be sent to every other member
+     */
+    public CausalBroadcastMessage broadcast(Object payload) {
+
+        VectorClock timestamp;
+
+        synchronized (clock) {
+            clock.tick(name);
+            timestamp = (VectorClock) clock.clone();
+        }
+        return binaryTimestamps ? new CausalBroadcastMessage(name, payload, timestamp.toBytes())
+                : new CausalBroadcastMessage(name, payload, timestamp.toJsonString());
+    }
+
+    /**
+     * Check a message received from the transport for causal order.
+     * If in order check for held messages that can now be delivered.
+     * @param received message with timestamp
+     * @return the message payloads that can now be processed (null if parameter message is out of order)
+     */
+    public List<Object> recvMessage(CausalBroadcastMessage msg) {
+        final LinkedList<Object> results = new LinkedList<Object>();
+
+        int delivered = recvMessage(msg, new DeliveryListener() {
+            public void deliver(Object payload) {
+                results.add(payload);
+            }
+        });
+        return delivered == 0 ? null : results;
+    }
+
+    /**
+     * Check a message received from the transport for causal order, handing
+     * the payload of each message that can now be processed to the listener
+     * as it is delivered.
+     * @param received message with timestamp
+     * @param listener called for each payload delivered, in causal order
+     * @return the number of payloads delivered (zero if parameter message is
+     * out of order, or a duplicate)
+     */
+    public int recvMessage(CausalBroadcastMessage msg, DeliveryListener listener) {
+
+        VectorClock stamp = msg.getVectorClock();
+        long sent = stamp.countFor(msg.getSender());
+
+        synchronized (clock) {
+
+            if (sent <= clock.countFor(msg.getSender())) {
+                return 0; // delivered already
+            }
+            if (!deliverable(msg.getSender(), stamp)) {
+                hold(msg, sent);
+                return 0;
+            }
+            deliver(msg, listener);
+            return 1 + deliverHeld(listener);
+        }
+    }
+
+    /**
+     * Birman-Schiper-Stephenson delivery condition: the message is the next
+     * from its sender, and its sender had delivered no message that has not
+     * been delivered here. Callers hold the lock.
+     */
+    private boolean deliverable(String sender, VectorClock stamp) {
+        return stamp.isNextFrom(sender, clock);
+    }
+
+    private void deliver(CausalBroadcastMessage msg, DeliveryListener listener) {
+        clock.merge(msg.getVectorClock());
+        listener.deliver(msg.getPayload());
+    }
+
+    /**
+     * hold an out-of-order message behind the earlier messages from its sender.
+     * A duplicate of a message held already is dropped.
+     */
+    private void hold(CausalBroadcastMessage msg, long sent) {
+
+        TreeMap<Long, CausalBroadcastMessage> fromSender = held.get(msg.getSender());
+
+        if (fromSender == null) {
+            fromSender = new TreeMap<Long, CausalBroadcastMessage>();
+            held.put(msg.getSender(), fromSender);
+        }
+        if (fromSender.put(sent, msg) == null) {
+            ++heldCount;
+        }
+    }
+
+    /**
+     * deliver the held messages that have become deliverable. Only the
+     * earliest held message from each sender can be, so only those are
+     * checked, until a pass delivers nothing. A held message that has been
+     * delivered already, from a copy received since, is dropped.
+     * @return the number delivered
+     */
+    private int deliverHeld(DeliveryListener listener) {
+
+        int delivered = 0;
+        boolean progress = !held.isEmpty();
+
+        while (progress) {
+
+            progress = false;
+            for (Iterator<Map.Entry<String, TreeMap<Long, CausalBroadcastMessage>>> senders = held.entrySet().iterator();
+                    senders.hasNext();) {
+
+                Map.Entry<String, TreeMap<Long, CausalBroadcastMessage>> entry = senders.next();
+                TreeMap<Long, CausalBroadcastMessage> fromSender = entry.getValue();
+
+                while (!fromSender.isEmpty()) {
+
+                    Map.Entry<Long, CausalBroadcastMessage> earliest = fromSender.firstEntry();
+
+                    if (earliest.getKey() <= clock.countFor(entry.getKey())) {
+                        fromSender.pollFirstEntry();
+                        --heldCount;
+                    } else if (deliverable(entry.getKey(), earliest.getValue().getVectorClock())) {
+                        fromSender.pollFirstEntry();
+                        --heldCount;
+                        deliver(earliest.getValue(), listener);
+                        ++delivered;
+                        progress = true;
+                    } else {
+                        break;
+                    }
+                }
+                if (fromSender.isEmpty()) {
+                    senders.remove();
+                }
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * @param name the name of this process in the group
+     */
+    public CausalBroadcastHandler(String name) {
+        this.name = name;
+        clock = new VectorClock();
+    }
+
+    /**
+     * @return a copy of the handler's vector clock: the number of messages
+     * delivered from each process, and broadcast by this one
+     */
+    public VectorClock getClock() {
+        synchronized (clock) {
+            return (VectorClock) clock.clone();
+        }
+    }
+}
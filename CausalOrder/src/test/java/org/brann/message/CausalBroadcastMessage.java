@@ -0,0 +1,96 @@
+package org.brann.message;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import org.brann.clock.VectorClock;
+
+/**
+ * A message broadcast to every member of a group, using the sender's
+ * VectorClock to control Causal Order.
+ * @author John Brann
+ * @see CausalBroadcastHandler
+ */
+@SuppressWarnings("serial")
+public class CausalBroadcastMessage implements Serializable {
+
+    /**
+     * obtain the name of the process that broadcast this message
+     * @return The sender's name
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * obtain the VectorClock associated with this message
+     * @see org.brann.clock.VectorClock
+     * @return The timestamp of the message
+     */
+    public String getTimestamp() {
+        if (timestamp == null) {
+            return new VectorClock(ByteBuffer.wrap(encodedTimestamp)).toJsonString();
+        }
+        return timestamp;
+    }
+
+    /**
+     * obtain the binary form of the timestamp, for messages sent with binary
+     * timestamps
+     * @see org.brann.clock.VectorClock#encode(ByteBuffer)
+     * @return The encoded timestamp, or null if the message carries JSON
+     */
+    public byte[] getEncodedTimestamp() {
+        return encodedTimestamp;
+    }
+
+    /**
+     * obtain the decoded form of the timestamp. It is decoded the first time
+     * this is called and the result is kept, so a message that is held back
+     * and re-examined by its receiver is only decoded once.
+     * @return The decoded timestamp of the message
+     */
+    VectorClock getVectorClock() {
+        if (decoded == null) {
+            decoded = (timestamp != null) ? new VectorClock(timestamp)
+                    : new VectorClock(ByteBuffer.wrap(encodedTimestamp));
+        }
+        return decoded;
+    }
+
+    /**
+     * Obtain the message payload.
+     * @return The payload of the message
+     */
+    public Object getPayload() {
+        return payload;
+    }
+
+    /**
+     * @param The name of the process broadcasting the message
+     * @param The message payload
+     * @param The vector clock of the sender, as JSON
+     */
+    protected CausalBroadcastMessage(String sender, Object payload, String clock) {
+        this.sender = sender;
+        this.payload = payload;
+        timestamp = clock;
+    }
+
+    /**
+     * @param The name of the process broadcasting the message
+     * @param The message payload
+     * @param The binary vector clock of the sender
+     */
+    protected CausalBroadcastMessage(String sender, Object payload, byte[] clock) {
+        this.sender = sender;
+        this.payload = payload;
+        encodedTimestamp = clock;
+    }
+
+    private String sender;
+    private Object payload;
+    private String timestamp;
+    private byte[] encodedTimestamp;
+    private transient VectorClock decoded;
+}
@@ -1,6 +1,17 @@
 package org.brann.message;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.brann.clock.VectorTimeStamp;
 
 /**
  * A message passed between processes using a VectorTimeStamp to control
@@ -14,10 +25,153 @@ public class CausallyOrderedMessage implements Serializable {
      * @see org.brann.clock.VectorTimeStamp
      * @return The timestamp of the message*/
     public String getTimestamp() {
+        if (timestamp == null) {
+            return new VectorTimeStamp(null, ByteBuffer.wrap(encodedTimestamp)).toJsonString();
+        }
     	return timestamp;
         // return new VectorTimeStamp(null, timestamp);
     }
 
+    /**
+     * obtain the binary form of the timestamp, for messages sent with binary
+     * timestamps
+     * @see org.brann.clock.VectorTimeStamp#encode(ByteBuffer)
+     * @return The encoded timestamp, or null if the message carries JSON
+     */
+    public byte[] getEncodedTimestamp() {
+        return encodedTimestamp;
+    }
+
+    /**
+     * obtain the decoded form of the timestamp. The String is parsed the first
+     * time this is called and the result is kept, so a message that is held
+     * back and re-examined by its receiver is only parsed once.
+     * @return The decoded timestamp of the message
+     */
+    VectorTimeStamp getVectorTimeStamp() {
+        if (decoded == null) {
+            decoded = (timestamp != null) ? new VectorTimeStamp(null, timestamp)
+                    : new VectorTimeStamp(null, ByteBuffer.wrap(encodedTimestamp));
+        }
+        return decoded;
+    }
+
+    /**
+     * obtain the decoded form of the timestamp, decoding it into a timestamp
+     * from the pool if it has not been decoded yet.
+     * @see #releaseVectorTimeStamp(TimeStampPool)
+     */
+    VectorTimeStamp getVectorTimeStamp(TimeStampPool pool) {
+        if (decoded == null) {
+            decoded = pool.take();
+            if (timestamp != null) {
+                decoded.reset(null, timestamp);
+            } else {
+                decoded.reset(null, ByteBuffer.wrap(encodedTimestamp));
+            }
+            pooled = true;
+        }
+        return decoded;
+    }
+
+    /**
+     * give a timestamp decoded from the pool back to it, once the message no
+     * longer needs it. A timestamp decoded any other way is kept.
+     */
+    void releaseVectorTimeStamp(TimeStampPool pool) {
+        if (pooled) {
+            pool.give(decoded);
+            decoded = null;
+            pooled = false;
+        }
+    }
+
+    /**
+     * Obtain the position of this message in the sequence of delta-timestamped
+     * messages from its sender to its destination.
+     * @return the sequence number, counting from one, or zero if the message
+     * carries a complete timestamp
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * replace the decoded timestamp - used once a delta timestamp has been
+     * applied to its predecessor to rebuild the complete timestamp
+     */
+    void setVectorTimeStamp(VectorTimeStamp complete) {
+        decoded = complete;
+        pooled = false;
+    }
+
+    /**
+     * an estimate of the memory held by the message: its encoded timestamp,
+     * and its payload if that is a byte array or a String
+     */
+    int size() {
+        int size = (timestamp != null) ? 2 * timestamp.length() : encodedTimestamp.length;
+
+        if (payload instanceof byte[]) {
+            size += ((byte[]) payload).length;
+        } else if (payload instanceof String) {
+            size += 2 * ((String) payload).length();
+        }
+        return size;
+    }
+
+    /**
+     * Write the message in a compact binary form: its timestamp as carried,
+     * its sequence number and its payload, serialized.
+     * @see #read(DataInput)
+     */
+    void write(DataOutput out) throws IOException {
+
+        byte[] stamp = (encodedTimestamp != null) ? encodedTimestamp
+                : timestamp.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+
+        oos.writeObject(payload);
+        oos.close();
+
+        out.writeBoolean(encodedTimestamp != null);
+        out.writeInt(stamp.length);
+        out.write(stamp);
+        out.writeLong(sequence);
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    /**
+     * Read a message written by write(DataOutput)
+     */
+    static CausallyOrderedMessage read(DataInput in) throws IOException {
+
+        boolean binary = in.readBoolean();
+        byte[] stamp = new byte[in.readInt()];
+
+        in.readFully(stamp);
+
+        long sequence = in.readLong();
+        byte[] serialized = new byte[in.readInt()];
+
+        in.readFully(serialized);
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        Object payload;
+
+        try {
+            payload = ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown payload class", e);
+        } finally {
+            ois.close();
+        }
+        return binary ? new CausallyOrderedMessage(payload, stamp, sequence)
+                : new CausallyOrderedMessage(payload, new String(stamp, StandardCharsets.UTF_8), sequence);
+    }
+
     /**
      * Obtain the message payload.
      * @return The payload of the message 
@@ -31,10 +185,43 @@ public class CausallyOrderedMessage implements Serializable {
      * @param The timestamp of the process creating the message 
      */
     protected CausallyOrderedMessage(Object payload, String clock) {
+        this(payload, clock, 0);
+    }
+
+    /**
+     * @param The message payload
+     * @param The (delta) timestamp of the process creating the message 
+     * @param The sequence number of a delta timestamp, zero for none 
+     */
+    protected CausallyOrderedMessage(Object payload, String clock, long sequence) {
         timestamp = clock;
         this.payload = payload;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @param The message payload
+     * @param The binary timestamp of the process creating the message 
+     */
+    protected CausallyOrderedMessage(Object payload, byte[] clock) {
+        this(payload, clock, 0);
+    }
+
+    /**
+     * @param The message payload
+     * @param The binary (delta) timestamp of the process creating the message 
+     * @param The sequence number of a delta timestamp, zero for none 
+     */
+    protected CausallyOrderedMessage(Object payload, byte[] clock, long sequence) {
+        encodedTimestamp = clock;
+        this.payload = payload;
+        this.sequence = sequence;
     }
 
     private Object payload;
     private String timestamp;
+    private byte[] encodedTimestamp;
+    private long sequence;
+    private transient VectorTimeStamp decoded;
+    private transient boolean pooled;
 }
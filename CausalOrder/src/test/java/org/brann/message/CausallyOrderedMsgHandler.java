@@ -2,10 +2,16 @@
 
 package org.brann.message;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Set;
 
+import org.brann.clock.LogicalClock;
 import org.brann.clock.VectorTimeStamp;
 
 /**
@@ -14,6 +20,26 @@ import org.brann.clock.VectorTimeStamp;
  * 
  * Message payloads to be sent are properly timestamped and received messages (with timestamps)
  * are checked for causal order correctness and delivered (or buffered) as appropriate.
+ * 
+ * A handler may be shared by any number of sending and receiving threads.
+ * Timestamps are decoded and encoded outside the handler's lock - the lock on
+ * its clock - which is held only to check order and update the clock, the
+ * hold-back queue and the delta channels. Each message sent carries a
+ * timestamp covering every message accepted before the send.
+ * 
+ * Delivery listeners are called without the lock. Each receive call collects
+ * the payloads it accepts, and hands them to its listener, on its own thread,
+ * once every payload accepted before them by any call has been handed on. So
+ * payloads reach the listeners one at a time, in an order consistent with
+ * causality across all receiving threads, while other threads go on sending
+ * and checking received messages. A slow listener holds up the listeners of
+ * later calls, not the handler. A listener may send through the handler. A
+ * listener that receives through it has the payloads of that call handed to
+ * the listener given after those still due to the outer call, once the inner
+ * call has returned. If a listener fails, the payload it failed on and those
+ * after it are handed to the listener of the next call to deliver anything,
+ * ahead of its own. The timestamp options are to be chosen before the handler
+ * is shared.
  * @author John Brann
  * @see VectorClock 
  */
@@ -24,13 +50,478 @@ public class CausallyOrderedMsgHandler {
 		return name;
 	}
 
-	private LinkedList<CausallyOrderedMessage> heldMessages;
+	private HoldBackQueue heldMessages;
 	private VectorTimeStamp clock;
+	private boolean binaryTimestamps;
+	private boolean deltaTimestamps;
+	private DeltaChannels deltas = new DeltaChannels();
+	private boolean pooledTimestamps;
+	private TimeStampPool pool = new TimeStampPool();
+	private List<CausallyOrderedMessage> released;
+	private DeliveryListener deliveryListener;
+	private int maxHeld;
+	private long maxHeldBytes;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+	private MissingMessageListener missingListener;
+	private long overflows;
+	private int blocked;
+	private File spillDirectory;
+	private int spillSegmentSize = SegmentStore.SEGMENT_SIZE;
+	private SegmentStore spillStore;
+	private Checkpoint checkpoint;
+	private boolean replaying;
+	private Membership membership;
+	private final Object turns = new Object();
+	private LinkedList<Batch> due = new LinkedList<Batch>();
+	private List<Object> undelivered = new ArrayList<Object>();
+	private Thread handing;
+
+	/**
+	 * The payloads accepted by one receive call, to be handed to its listener
+	 * once every payload accepted before them has been handed on
+	 */
+	private static class Batch implements DeliveryListener {
+		private final DeliveryListener listener;
+		private final Thread owner = Thread.currentThread();
+		private final List<Object> payloads = new ArrayList<Object>();
+
+		Batch(DeliveryListener listener) {
+			this.listener = listener;
+		}
+
+		public void deliver(Object payload) {
+			payloads.add(payload);
+		}
+	}
+
+	/**
+	 * Choose the form of timestamp put on outgoing messages: the compact binary
+	 * encoding, or JSON (the default). Received messages are decoded in
+	 * whichever form they carry.
+	 * @param binary true to send binary timestamps
+	 */
+	public void setBinaryTimestamps(boolean binary) {
+		binaryTimestamps = binary;
+	}
+
+	public boolean isBinaryTimestamps() {
+		return binaryTimestamps;
+	}
+
+	/**
+	 * Choose whether outgoing messages carry complete timestamps (the default)
+	 * or only the changes since the previous message to the same destination.
+	 * Delta timestamps are rebuilt by the receiver, which must see every
+	 * message on the channel. Received messages may carry either.
+	 * @param delta true to send delta timestamps
+	 */
+	public void setDeltaTimestamps(boolean delta) {
+		deltaTimestamps = delta;
+	}
+
+	public boolean isDeltaTimestamps() {
+		return deltaTimestamps;
+	}
+
+	/**
+	 * Build an outgoing message carrying the timestamp in the chosen form
+	 * @param timestamp the timestamp (or delta), not to be altered afterwards
+	 * @param sequence the sequence number of a delta timestamp, zero for none
+	 */
+	private CausallyOrderedMessage stamped(Object payload, VectorTimeStamp timestamp, long sequence) {
+
+		return binaryTimestamps ? new CausallyOrderedMessage(payload, timestamp.toBytes(), sequence)
+				: new CausallyOrderedMessage(payload, timestamp.toJsonString(), sequence);
+	}
+
+	/**
+	 * Register the listener that receive() hands delivered payloads to.
+	 * @param listener called for each payload delivered, in causal order
+	 * @see DeliveryQueue
+	 */
+	public void setDeliveryListener(DeliveryListener listener) {
+		deliveryListener = listener;
+	}
+
+	public DeliveryListener getDeliveryListener() {
+		return deliveryListener;
+	}
+
+	/**
+	 * Limit the out-of-order messages held back in memory, by number and by
+	 * estimated size. An out-of-order message that arrives when either limit
+	 * would be passed is dealt with by the overflow policy, unless none are
+	 * held. Messages held again after being re-checked are not limited. A
+	 * message with a delta timestamp that is not accepted cannot be re-sent on
+	 * its channel, so one is held in memory regardless of the limits under any
+	 * policy but BLOCK.
+	 * @param messages the most messages to hold, zero for no limit (the default)
+	 * @param bytes the most bytes to hold, zero for no limit (the default)
+	 */
+	public void setHoldBackLimits(int messages, long bytes) {
+		maxHeld = messages;
+		maxHeldBytes = bytes;
+	}
+
+	/**
+	 * Choose what is done with an out-of-order message that arrives when the
+	 * hold-back buffer is full.
+	 * @param policy the policy, REJECT by default
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		overflowPolicy = policy;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Choose where messages are spilled to under SPILL
+	 * @param directory the directory for segment files, the default temporary
+	 * directory if null (the default)
+	 */
+	public void setSpillDirectory(File directory) {
+		spillDirectory = directory;
+	}
+
+	/**
+	 * Choose the size of the segment files messages are spilled to
+	 * @param bytes the size of each segment, 16MB by default
+	 */
+	public void setSpillSegmentSize(int bytes) {
+		spillSegmentSize = bytes;
+	}
+
+	/**
+	 * Release the files the handler holds: the segment files of spilled
+	 * messages are unmapped and deleted, dropping those messages, and the
+	 * checkpoint log is closed, leaving the checkpoint for recover(). The
+	 * handler is not to be used afterwards.
+	 */
+	public void close() throws IOException {
+		synchronized (clock) {
+			if (spillStore != null) {
+				spillStore.close();
+				spillStore = null;
+			}
+			if (checkpoint != null) {
+				checkpoint.close();
+				checkpoint = null;
+			}
+		}
+	}
+
+	/**
+	 * Start keeping a checkpoint of the handler in the directory, replacing
+	 * any there, from which recover() can rebuild it after a restart. A
+	 * snapshot is taken now and each message sent or accepted afterwards is
+	 * logged, so payloads received must be Serializable. Delta channels are
+	 * not recorded, so checkpoints are for messages with complete timestamps:
+	 * while one is kept, messages with delta timestamps are refused.
+	 * @param directory the directory to keep the checkpoint in, or null to
+	 * stop keeping one
+	 * @throws IllegalStateException if delta timestamps are sent, or have been
+	 * received
+	 */
+	public void setCheckpointDirectory(File directory) throws IOException {
+		synchronized (clock) {
+			if (checkpoint != null) {
+				checkpoint.close();
+				checkpoint = null;
+			}
+			if (directory != null) {
+				if (deltaTimestamps || deltas.receiving()) {
+					throw new IllegalStateException("Delta timestamps cannot be checkpointed for " + name);
+				}
+				checkpoint = new Checkpoint(directory);
+				checkpoint();
+			}
+		}
+	}
+
+	/**
+	 * Take a new snapshot, replacing the last and starting a new log, so
+	 * that recovery has less to replay.
+	 * @throws IllegalStateException if no checkpoint is kept, or delta
+	 * timestamps are sent or have been received
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (clock) {
+			if (checkpoint == null) {
+				throw new IllegalStateException("No checkpoint kept for " + name);
+			}
+			if (deltaTimestamps || deltas.receiving()) {
+				throw new IllegalStateException("Delta timestamps cannot be checkpointed for " + name);
+			}
+			checkpoint.write(clock, heldMessages.messages(), membership);
+		}
+	}
+
+	/**
+	 * Rebuild a handler from the checkpoint kept in the directory: its clock,
+	 * held messages and view of its group as of the last snapshot, then the
+	 * messages sent and accepted, and the members set, since, replayed
+	 * without being delivered again. The handler
+	 * goes on keeping its checkpoint there, from a new snapshot.
+	 * @param name the name of the process handling messages
+	 * @return the handler, new if there is no checkpoint in the directory
+	 */
+	public static CausallyOrderedMsgHandler recover(String name, File directory) throws IOException {
+
+		final CausallyOrderedMsgHandler handler = new CausallyOrderedMsgHandler(name);
+		Checkpoint checkpoint = new Checkpoint(directory);
+		List<CausallyOrderedMessage> held = new ArrayList<CausallyOrderedMessage>();
+		VectorTimeStamp restored = checkpoint.read(held);
+
+		if (restored != null) {
+			if (!name.equals(restored.getOwner())) {
+				throw new IOException("Checkpoint in " + directory + " is for " + restored.getOwner());
+			}
+			handler.clock = restored;
+			handler.membership = checkpoint.membership();
+			for (CausallyOrderedMessage msg : held) {
+				handler.heldMessages.hold(msg, handler.stampOf(msg), restored);
+			}
+
+			final DeliveryListener replayed = new DeliveryListener() {
+				public void deliver(Object payload) {
+					// delivered before the restart
+				}
+			};
+
+			handler.replaying = true;
+			try {
+				checkpoint.replay(new Checkpoint.Events() {
+					public void send(String destn) {
+						handler.sendMessage(null, destn);
+					}
+
+					public void multicast(String[] destn) {
+						handler.sendMessage(null, destn);
+					}
+
+					public void receive(CausallyOrderedMessage msg) {
+						handler.recvMessage(msg, replayed);
+					}
+
+					public void members(String[] processes) {
+						handler.setMembers(processes);
+					}
+				});
+			} finally {
+				handler.replaying = false;
+			}
+		}
+		handler.checkpoint = checkpoint;
+		handler.checkpoint();
+		return handler;
+	}
+
+	/**
+	 * Set the members of the group this handler sends to, starting a new
+	 * epoch. Membership is not followed until this is called, or the handler
+	 * joins a group.
+	 * @param members the other members
+	 */
+	public void setMembers(String[] members) {
+		synchronized (clock) {
+			if (checkpoint != null) {
+				checkpoint.logMembers(members);
+			}
+			membership().setMembers(members);
+		}
+	}
+
+	/**
+	 * Join a group, taking its members as this handler's view and announcing
+	 * the join to them with a MembershipChange.
+	 * @param members the other members
+	 * @return the announcement, one message for each member, to be sent
+	 */
+	public CausallyOrderedMessage[] join(String[] members) {
+		synchronized (clock) {
+			setMembers(members);
+			return sendMessage(new MembershipChange(name, true), membership.others());
+		}
+	}
+
+	/**
+	 * Leave the group, announcing it to the other members with a
+	 * MembershipChange. Nothing is to be sent afterwards, so the count of this
+	 * process's clock in the announcement is final. Each member acknowledges
+	 * the leave by sending to the others once it has delivered it, and when a
+	 * member has every acknowledgement, and has sent its own to every member,
+	 * it drops this process's entries from its timestamps.
+	 * @return the announcement, one message for each member, to be sent
+	 */
+	public CausallyOrderedMessage[] leave() {
+		synchronized (clock) {
+			return sendMessage(new MembershipChange(name, false), membership().others());
+		}
+	}
+
+	/**
+	 * @return the members of the group in this handler's view, including itself
+	 */
+	public Set<String> getMembers() {
+		synchronized (clock) {
+			return membership().members();
+		}
+	}
+
 	/**
-     * Buffer an out-of-order message 
+	 * @return the number of changes made to this handler's view of the group
+	 */
+	public long getEpoch() {
+		synchronized (clock) {
+			return membership == null ? 0 : membership.epoch();
+		}
+	}
+
+	/**
+	 * @return true if the process has left the group and its entries have
+	 * been dropped from this handler's timestamps
+	 */
+	public boolean isRetired(String process) {
+		synchronized (clock) {
+			return membership != null && membership.retired().contains(process);
+		}
+	}
+
+	private Membership membership() {
+		if (membership == null) {
+			membership = new Membership(name);
+		}
+		return membership;
+	}
+
+	/**
+	 * Follow the membership changes, and acknowledgements, a delivered message
+	 * carries
+	 */
+	private void delivered(Object payload, VectorTimeStamp fromMsg) {
+		if (payload instanceof MembershipChange) {
+			retire(membership.apply((MembershipChange) payload, fromMsg));
+		}
+		retire(membership.delivered(fromMsg));
+	}
+
+	/**
+	 * drop the entries of processes that have left from the clock
+	 */
+	private void retire(List<String> retired) {
+		for (String process : retired) {
+			clock.retire(process);
+			heldMessages.retire(process);
+		}
+	}
+
+	/**
+	 * refuse a message with a delta timestamp while a checkpoint is kept, as
+	 * the channel it was rebuilt on would not be recovered. Called holding the
+	 * lock, before any message in the call is accepted.
+	 */
+	private void checkpointable(CausallyOrderedMessage msg) {
+		if (checkpoint != null && msg.getSequence() != 0) {
+			throw new IllegalStateException("Delta timestamp from "
+					+ msg.getVectorTimeStamp().getOwner() + " refused: " + name + " keeps a checkpoint");
+		}
+	}
+
+	/**
+	 * log a message accepted, if a checkpoint is kept
+	 * @param record the message's log record, null if it is not to be logged
+	 */
+	private void logged(byte[] record) {
+		if (record != null) {
+			checkpoint.logReceive(record);
+		}
+	}
+
+	/**
+	 * Register the listener told of missing messages under REPORT_MISSING
+	 */
+	public void setMissingMessageListener(MissingMessageListener listener) {
+		missingListener = listener;
+	}
+
+	/**
+	 * @return the number of messages held back
+	 */
+	public int getHeldCount() {
+		synchronized (clock) {
+			return heldMessages.size();
+		}
+	}
+
+	/**
+	 * @return the estimated memory held by the messages held back in memory
+	 */
+	public long getHeldBytes() {
+		synchronized (clock) {
+			return heldMessages.bytes();
+		}
+	}
+
+	/**
+	 * @return the number of messages held back in segment files
+	 */
+	public int getSpilledCount() {
+		synchronized (clock) {
+			return heldMessages.spilled();
+		}
+	}
+
+	/**
+	 * @return the serialized size of the messages held back in segment files
+	 */
+	public long getSpilledBytes() {
+		synchronized (clock) {
+			return spillStore == null ? 0 : spillStore.bytes();
+		}
+	}
+
+	/**
+	 * @return the number of out-of-order messages that arrived when the
+	 * hold-back buffer was full
+	 */
+	public long getOverflowCount() {
+		synchronized (clock) {
+			return overflows;
+		}
+	}
+
+	/**
+	 * Choose whether the timestamps of received messages are decoded into
+	 * timestamps taken from a pool, and given back to it once the message is
+	 * delivered, rather than newly allocated for each message. Messages with
+	 * delta timestamps are never pooled, as the rebuilt timestamp is kept.
+	 * A message's decoded timestamp must not be used by the caller once the
+	 * message is delivered.
+	 * @param pooled true to decode into pooled timestamps
+	 */
+	public void setPooledTimestamps(boolean pooled) {
+		pooledTimestamps = pooled;
+	}
+
+	public boolean isPooledTimestamps() {
+		return pooledTimestamps;
+	}
+
+	/**
+     * the decoded timestamp of a received message
+     */
+    private VectorTimeStamp stampOf(CausallyOrderedMessage msg) {
+        return (pooledTimestamps && msg.getSequence() == 0) ? msg.getVectorTimeStamp(pool)
+                : msg.getVectorTimeStamp();
+    }
+
+	/**
+     * Buffer an out-of-order message behind the earlier messages from its sender
      */
     private void holdMessage(CausallyOrderedMessage msg) {
-        heldMessages.add(msg);
+        heldMessages.hold(msg, stampOf(msg), clock);
     }
 
     /**
@@ -40,32 +531,437 @@ public class CausallyOrderedMsgHandler {
      * @return Vector of message payloads that can now be processed (null if parameter message is out of order) 
      */
     public List<Object> recvMessage(CausallyOrderedMessage msg) {
-        LinkedList<Object> results = null;
-        
-        if (checkOrderAndReceive(msg)) {
-            
-            results = new LinkedList<Object>();
-            results.add(msg.getPayload());
-            if (heldMessages.size() > 0) {
-                results.addAll(scanHeld());
+        LinkedList<Object> results = new LinkedList<Object>();
+
+        if (recvMessage(msg, collector(results)) == 0) {
+            return null;
+        }
+        return results;
+    }
+
+    /**
+     * Check a message received from the transport for causal order, handing
+     * the payload of each message that can now be processed to the listener
+     * as it is delivered, rather than collecting them in a list.
+     * @param received message with timestamp
+     * @param listener called for each payload delivered, in causal order
+     * @return the number of payloads handed to the listener (zero if parameter
+     * message is out of order, or the call is made from a listener)
+     * @throws IllegalStateException if the message has a delta timestamp and
+     * a checkpoint is kept
+     */
+    public int recvMessage(CausallyOrderedMessage msg, DeliveryListener listener) {
+
+        Batch batch = new Batch(listener);
+
+        stampOf(msg);
+        try {
+            synchronized (clock) {
+                try {
+                    checkpointable(msg);
+
+                    int delivered = accept(msg, batch);
+
+                    if (delivered > 0 && heldMessages.size() > 0) {
+                        delivered += scanHeld(batch);
+                    }
+                    if (delivered > 0 && blocked > 0) {
+                        clock.notifyAll();
+                    }
+                } finally {
+                    due(batch);
+                }
             }
-        } else {
-            holdMessage(msg);
+        } catch (RuntimeException e) {
+            handOn(batch);
+            throw e;
+        }
+        return handOn(batch);
+    }
+
+    /**
+     * Check a batch of messages received from the transport for causal order.
+     * Every timestamp is decoded before any message is checked, and buffered
+     * messages are checked once, after the whole batch.
+     * @param received messages with timestamps, in the order they arrived
+     * @return message payloads that can now be processed, in a causal delivery
+     * order (empty if none can)
+     * @throws HoldBackOverflowException once the whole batch is received, if
+     * any message in it was rejected. The payloads delivered are in the
+     * exception.
+     */
+    public List<Object> recvMessages(Collection<CausallyOrderedMessage> msgs) {
+        List<Object> results = new ArrayList<Object>(msgs.size());
+
+        try {
+            recvMessages(msgs, collector(results));
+        } catch (HoldBackOverflowException e) {
+            e.setDelivered(results);
+            throw e;
         }
         return results;
     }
 
-    private boolean checkOrderAndReceive(CausallyOrderedMessage msg) {
+    /**
+     * Check a batch of messages received from the transport for causal order,
+     * handing the payload of each message that can now be processed to the
+     * listener as it is delivered.
+     * @see #recvMessages(Collection)
+     * @param received messages with timestamps, in the order they arrived
+     * @param listener called for each payload delivered, in causal order
+     * @return the number of payloads delivered
+     * @throws HoldBackOverflowException once the whole batch is received, if
+     * any message in it was rejected
+     */
+    public int recvMessages(Collection<CausallyOrderedMessage> msgs, DeliveryListener listener) {
+        List<HoldBackOverflowException> rejections = new ArrayList<HoldBackOverflowException>();
+        int delivered = recvMessages(msgs, listener, rejections);
+
+        if (!rejections.isEmpty()) {
+            HoldBackOverflowException first = rejections.get(0);
+
+            for (int i = 1; i < rejections.size(); ++i) {
+                first.addSuppressed(rejections.get(i));
+            }
+            throw first;
+        }
+        return delivered;
+    }
+
+    /**
+     * Check a batch of messages received from the transport for causal order,
+     * handing the payload of each message that can now be processed to the
+     * listener, and reporting each message rejected under REJECT rather than
+     * throwing. The rest of the batch is received regardless.
+     * @see #recvMessages(Collection)
+     * @param received messages with timestamps, in the order they arrived
+     * @param listener called for each payload delivered, in causal order
+     * @param rejections added to for each message rejected, which is to be
+     * received again later
+     * @return the number of payloads handed to the listener
+     */
+    public int recvMessages(Collection<CausallyOrderedMessage> msgs, DeliveryListener listener,
+            Collection<HoldBackOverflowException> rejections) {
+        Batch batch = new Batch(listener);
+
+        for (CausallyOrderedMessage msg : msgs) {
+            stampOf(msg);
+        }
+        try {
+            synchronized (clock) {
+                try {
+                    int delivered = 0;
+
+                    for (CausallyOrderedMessage msg : msgs) {
+                        checkpointable(msg);
+                    }
+                    for (CausallyOrderedMessage msg : msgs) {
+                        try {
+                            delivered += accept(msg, batch);
+                        } catch (HoldBackOverflowException e) {
+                            rejections.add(e);
+                        }
+                    }
+                    if (delivered > 0 && heldMessages.size() > 0) {
+                        delivered += scanHeld(batch);
+                    }
+                    if (delivered > 0 && blocked > 0) {
+                        clock.notifyAll();
+                    }
+                } finally {
+                    due(batch);
+                }
+            }
+        } catch (RuntimeException e) {
+            handOn(batch);
+            throw e;
+        }
+        return handOn(batch);
+    }
+
+    /**
+     * queue the payloads a call has accepted to be handed on. Called holding
+     * the lock on the clock, so that batches queue in the order their payloads
+     * were accepted. A batch with no payloads is queued only to take payloads
+     * left undelivered by a listener that failed.
+     */
+    private void due(Batch batch) {
+        synchronized (turns) {
+            if (!batch.payloads.isEmpty() || !undelivered.isEmpty()) {
+                due.add(batch);
+            }
+        }
+    }
+
+    /**
+     * Hand the payloads of the calling thread's queued batches to their
+     * listeners, each once the batches queued before it have been handed on.
+     * A call made from a listener returns at once, leaving its batch to the
+     * outer call. Payloads left undelivered by a failed listener go to the
+     * next batch handed on, ahead of its own. Called without the lock on the
+     * clock.
+     * @return the number of payloads handed to the listener of the batch
+     * @throws RuntimeException the first failure of a listener, once every
+     * batch of the thread has been handed on
+     */
+    private int handOn(Batch batch) {
+        Thread me = Thread.currentThread();
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        int delivered = 0;
+
+        synchronized (turns) {
+            if (handing == me) {
+                return 0;
+            }
+        }
+        while (true) {
+            Batch next = null;
+
+            synchronized (turns) {
+                for (Batch queued : due) {
+                    if (queued.owner == me) {
+                        next = queued;
+                        break;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                while (due.peek() != next) {
+                    try {
+                        turns.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                handing = me;
+                next.payloads.addAll(0, undelivered);
+                undelivered.clear();
+            }
+
+            int i = 0;
+
+            try {
+                for (; i < next.payloads.size(); ++i) {
+                    next.listener.deliver(next.payloads.get(i));
+                }
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } finally {
+                synchronized (turns) {
+                    undelivered.addAll(next.payloads.subList(i, next.payloads.size()));
+                    due.poll();
+                    handing = null;
+                    turns.notifyAll();
+                }
+            }
+            if (next == batch) {
+                delivered = i;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return delivered;
+    }
+
+    /**
+     * Check a message received from the transport for causal order, handing
+     * the payload of each message that can now be processed to the registered
+     * listener. Held messages are only released by the receipt of the
+     * messages they wait on, so each is delivered during a call to receive.
+     * @param received message with timestamp
+     * @return the number of payloads delivered
+     * @throws IllegalStateException if no listener is registered
+     */
+    public int receive(CausallyOrderedMessage msg) {
+        return recvMessage(msg, registeredListener());
+    }
+
+    /**
+     * Check a batch of messages received from the transport for causal order,
+     * handing the payload of each message that can now be processed to the
+     * registered listener.
+     * @see #recvMessages(Collection)
+     * @param received messages with timestamps, in the order they arrived
+     * @return the number of payloads delivered
+     * @throws IllegalStateException if no listener is registered
+     * @throws HoldBackOverflowException once the whole batch is received, if
+     * any message in it was rejected
+     */
+    public int receive(Collection<CausallyOrderedMessage> msgs) {
+        return recvMessages(msgs, registeredListener());
+    }
+
+    private DeliveryListener registeredListener() {
+        if (deliveryListener == null) {
+            throw new IllegalStateException("No delivery listener registered for " + name);
+        }
+        return deliveryListener;
+    }
+
+    private static DeliveryListener collector(final List<Object> results) {
+        return new DeliveryListener() {
+            public void deliver(Object payload) {
+                results.add(payload);
+            }
+        };
+    }
+
+    /**
+     * Deliver a received message, and any others on its channel that it makes
+     * ready, or hold them back. Called holding the lock on the clock.
+     * @return the number of payloads delivered
+     */
+    private int accept(CausallyOrderedMessage msg, DeliveryListener listener) {
+        if (msg.getSequence() == 0) {
+            return deliverOrHold(msg, listener, true);
+        }
+
+        int delivered = 0;
+
+        for (CausallyOrderedMessage next : deltas.received(msg)) {
+            delivered += deliverOrHold(next, listener, true);
+        }
+        return delivered;
+    }
+
+    /**
+     * @param arrived true if the message has just arrived, and is limited by
+     * the hold-back limits. A message that has just arrived is logged, if a
+     * checkpoint is kept, before it is held or delivered.
+     * @return 1 if the message is delivered, 0 if it is held back or discarded
+     * @throws IllegalStateException if the message cannot be logged; it is
+     * then neither held nor delivered
+     */
+    private int deliverOrHold(CausallyOrderedMessage msg, DeliveryListener listener, boolean arrived) {
+        boolean overflowed = false;
+        byte[] record = (arrived && checkpoint != null) ? checkpoint.receiveRecord(msg) : null;
+
+        while (!checkOrderAndReceive(msg, record)) {
+            if (!arrived || !full(msg)) {
+                logged(record);
+                holdMessage(msg);
+                return 0;
+            }
+            if (!overflowed) {
+                ++overflows;
+                overflowed = true;
+            }
+            if (!overflow(msg, record)) {
+                return 0;
+            }
+        }
+        msg.releaseVectorTimeStamp(pool);
+        listener.deliver(msg.getPayload());
+        return 1;
+    }
+
+    private SegmentStore spillStore() {
+        if (spillStore == null) {
+            spillStore = new SegmentStore(spillDirectory == null
+                    ? new File(System.getProperty("java.io.tmpdir")) : spillDirectory,
+                    "spill-" + name + "-", spillSegmentSize);
+        }
+        return spillStore;
+    }
+
+    /**
+     * @return true if holding the message in memory would pass a hold-back limit
+     */
+    private boolean full(CausallyOrderedMessage msg) {
+        int held = heldMessages.size() - heldMessages.spilled();
+
+        return !replaying && held > 0 && ((maxHeld > 0 && held >= maxHeld)
+                || (maxHeldBytes > 0 && heldMessages.bytes() + msg.size() > maxHeldBytes));
+    }
+
+    /**
+     * Deal with an out-of-order message that arrived to a full buffer, by the
+     * overflow policy. An interrupted wait rejects the message. A message with
+     * a delta timestamp cannot be sent again once its channel has moved past
+     * it, so unless the policy is to wait it is held in memory.
+     * @return true if the message is to be checked again, false if held,
+     * spilled or discarded
+     * @throws HoldBackOverflowException if the message is rejected
+     */
+    private boolean overflow(CausallyOrderedMessage msg, byte[] record) {
+        OverflowPolicy policy = overflowPolicy;
+
+        if (policy == OverflowPolicy.BLOCK) {
+            ++blocked;
+            try {
+                clock.wait();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                policy = OverflowPolicy.REJECT;
+            } finally {
+                --blocked;
+            }
+        }
+
+        if (msg.getSequence() != 0) {
+            logged(record);
+            holdMessage(msg);
+            return false;
+        }
+
+        if (policy == OverflowPolicy.SPILL) {
+            logged(record);
+
+            CausallyOrderedMessage written = heldMessages.spill(msg, stampOf(msg), clock, spillStore());
+
+            if (written != null) {
+                written.releaseVectorTimeStamp(pool);
+            }
+            return false;
+        }
+
+        VectorTimeStamp fromMsg = stampOf(msg);
+        String process = clock.awaitedProcess(fromMsg);
+        LogicalClock awaited = clock.awaitedClock(fromMsg, process);
+        String sender = fromMsg.getOwner();
+
+        msg.releaseVectorTimeStamp(pool);
+        if (policy == OverflowPolicy.REJECT) {
+            throw new HoldBackOverflowException(msg, sender, process, awaited);
+        }
+        if (missingListener != null) {
+            missingListener.missing(sender, process, awaited);
+        }
+        return false;
+    }
+
+    /**
+     * deliver a message that is in causal order, merging its timestamp
+     * @param record the message's log record, written before the clock
+     * changes, or null if it is not to be logged
+     * @return false if the message is out of order
+     */
+    private boolean checkOrderAndReceive(CausallyOrderedMessage msg, byte[] record) {
         
-    	VectorTimeStamp fromMsg = new VectorTimeStamp(null, msg.getTimestamp());
+    	VectorTimeStamp fromMsg = stampOf(msg);
+        List<String> cleared = (membership == null) ? Collections.<String> emptyList()
+                : membership.strip(fromMsg);
     	
         if (clock.inCausalOrder(fromMsg)) {
 
-            synchronized (clock) {
-                clock.mergeLocal(fromMsg);
-                clock.mergeOther(fromMsg);
-                clock.tick();
+            logged(record);
+            clock.mergeLocal(fromMsg);
+            clock.mergeOther(fromMsg);
+            clock.prune(fromMsg);
+            if (membership != null) {
+                membership.cleared(fromMsg.getOwner(), cleared);
+                delivered(msg.getPayload(), fromMsg);
             }
+            clock.tick();
             return true;
         } else {
             return false;
@@ -73,29 +969,42 @@ public class CausallyOrderedMsgHandler {
     }
 
     /**
-     * iterate over held messages, releasing those that are freed up by 
-     * previously received messages.
+     * release held messages that are freed up by previously received messages.
+     * Only the first held message from each sender is re-checked, once its
+     * awaited clock entry has advanced; those still out of order are held again.
+     * If delivering one fails, the candidates not yet checked are held again
+     * before the failure is passed on, to be re-checked at the next delivery.
+     * Called holding the lock on the clock.
+     * @return the number of payloads delivered
      */
-    private List<Object> scanHeld() {
+    private int scanHeld(DeliveryListener listener) {
         
-        LinkedList<Object> delivered = new LinkedList<Object>();
-        boolean deliveredThisPass;
-        
-        do {
-            deliveredThisPass = false;
-            for (ListIterator<CausallyOrderedMessage> lIt = heldMessages.listIterator();
-                 lIt.hasNext();) {
-
-                CausallyOrderedMessage next = (CausallyOrderedMessage)lIt.next();
-                
-                if (checkOrderAndReceive(next)) {
-                    lIt.remove();
-                    delivered.add(next.getPayload());
-                    deliveredThisPass = true;
+        // reuse the list of candidates from the last scan
+        List<CausallyOrderedMessage> candidates = (released == null)
+                ? new ArrayList<CausallyOrderedMessage>() : released;
+        int delivered = 0;
+
+        released = null;
+        for (heldMessages.release(clock, candidates); !candidates.isEmpty();
+             heldMessages.release(clock, candidates)) {
+
+            int i = 0;
+
+            try {
+                for (; i < candidates.size(); ++i) {
+                    delivered += deliverOrHold(candidates.get(i), listener, false);
                 }
+            } catch (RuntimeException e) {
+                for (++i; i < candidates.size(); ++i) {
+                    holdMessage(candidates.get(i));
+                }
+                candidates.clear();
+                released = candidates;
+                throw e;
             }
-        } while (heldMessages.size() > 0 && deliveredThisPass);
-        
+            candidates.clear();
+        }
+        released = candidates;
         return delivered;
     }           
 
@@ -107,16 +1016,27 @@ public class CausallyOrderedMsgHandler {
      */
     public CausallyOrderedMessage sendMessage(Object payload, String destn) {
 
-        CausallyOrderedMessage result;
-        
+        VectorTimeStamp timestamp;
+        long sequence = 0;
+
         synchronized (clock) {
-            
-            result = new CausallyOrderedMessage(payload, clock.toString());
-            clock.insertClockFor(destn);
+
+            if (checkpoint != null) {
+                checkpoint.logSend(destn);
+            }
             clock.tick();
+            timestamp = new VectorTimeStamp(clock);
+            if (deltaTimestamps) {
+                timestamp = deltas.deltaTo(destn, timestamp);
+                sequence = deltas.sequenceTo(destn);
+            }
+            clock.insertClockFor(destn);
+            if (membership != null && membership.isLeaving()) {
+                retire(membership.sent(destn));
+            }
         }
-        
-        return result;
+
+        return stamped(payload, timestamp, sequence);
     }
 
     /**
@@ -126,31 +1046,40 @@ public class CausallyOrderedMsgHandler {
      * @param array of destination process names 
      */
     public CausallyOrderedMessage[] sendMessage(Object payload, String[] destn) {
-        VectorTimeStamp tmp;
         CausallyOrderedMessage result[] =
             new CausallyOrderedMessage[destn.length];
+        VectorTimeStamp[] stamps;
+        long[] sequences = new long[destn.length];
 
         synchronized (clock) {
 
+            if (checkpoint != null) {
+                checkpoint.logMulticast(destn);
+            }
+            clock.tick();
+            stamps = clock.multicastStamps(destn);
+
             for (int dests = 0;
-                 dests < destn.length;
+                 deltaTimestamps && dests < destn.length;
                  ++dests) {
-                    tmp = new VectorTimeStamp(clock);
-                    for (int inloop = 0;
-                         inloop < destn.length;
-                         ++inloop)
-                        if (dests!= inloop)
-                           tmp.insertClockFor(destn[inloop]);
-
-                    result[dests] = new CausallyOrderedMessage (payload, tmp.toString());
+                    stamps[dests] = deltas.deltaTo(destn[dests], stamps[dests]);
+                    sequences[dests] = deltas.sequenceTo(destn[dests]);
             }
             for (int dests = 0;
                  dests < destn.length;
                  ++dests) {
                     clock.insertClockFor(destn[dests]);
-                    clock.tick(destn[dests]);
             }
-            clock.tick();
+            for (int dests = 0;
+                 membership != null && membership.isLeaving() && dests < destn.length;
+                 ++dests) {
+                    retire(membership.sent(destn[dests]));
+            }
+        }
+        for (int dests = 0;
+             dests < destn.length;
+             ++dests) {
+                result[dests] = stamped(payload, stamps[dests], sequences[dests]);
         }
         return result;
     }
@@ -161,10 +1090,14 @@ public class CausallyOrderedMsgHandler {
      */
     public CausallyOrderedMsgHandler(String name) {
         this.name = name;
-        heldMessages = new LinkedList<CausallyOrderedMessage>();
+        heldMessages = new HoldBackQueue();
         clock = new VectorTimeStamp(name);
     }
 
+    /**
+     * @return the handler's clock, which is also its lock - to be read while
+     * synchronized on it if the handler is shared
+     */
     public VectorTimeStamp getClock() {
 		return clock;
 	}
@@ -0,0 +1,351 @@
+package org.brann.message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.brann.clock.VectorTimeStamp;
+
+/**
+ * A handler's checkpoint on disk: a binary snapshot of its clock, held
+ * messages and view of its group, and an append-only log of the messages
+ * sent and accepted, and the views set, since, which recovery replays on top
+ * of the snapshot.
+ * 
+ * Each snapshot has a generation, also written at the head of the log that
+ * follows it. A log left from an earlier generation - by a crash while a
+ * snapshot was being taken - is ignored, as is a record left incomplete at
+ * the end of the log.
+ *
+ * The log is synced to disk after each send, since a message that has left
+ * cannot be taken back: recovery must not stamp another with the same time.
+ * Receive records are only flushed. A send syncs them along with it, so a
+ * receive is only lost in a crash if nothing was sent after it, which is as
+ * if the message had not arrived.
+ *
+ * Each record is built whole before anything is written, and the handler
+ * logs an event before acting on it, so an event whose record cannot be
+ * built or written is not acted on. A log whose write has failed takes no
+ * more records until the next snapshot starts a new one.
+ * @author John Brann
+ */
+class Checkpoint {
+
+    private static final int MAGIC = 0x43434b50;
+    private static final byte SEND = 1;
+    private static final byte MULTICAST = 2;
+    private static final byte RECEIVE = 3;
+    private static final byte MEMBERS = 4;
+
+    /**
+     * The events of a log, as they are replayed
+     */
+    interface Events {
+        void send(String destn);
+
+        void multicast(String[] destn);
+
+        void receive(CausallyOrderedMessage msg);
+
+        void members(String[] processes);
+    }
+
+    private final File snapshot;
+    private final File log;
+    private long generation;
+    private Membership membership;
+    private FileOutputStream logFile;
+    private DataOutputStream out;
+
+    /**
+     * @param directory where the snapshot and log are kept. Generations
+     * continue from a snapshot already there.
+     */
+    Checkpoint(File directory) {
+        snapshot = new File(directory, "snapshot");
+        log = new File(directory, "log");
+
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(snapshot));
+
+            try {
+                if (in.readInt() == MAGIC) {
+                    generation = in.readLong();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // no snapshot yet - start from the first generation
+        }
+    }
+
+    /**
+     * Write a snapshot, replacing the last, and start a new log
+     * @param held the messages held back by the handler
+     * @param membership the handler's view of its group, null if it has none
+     */
+    void write(VectorTimeStamp clock, List<CausallyOrderedMessage> held,
+               Membership membership) throws IOException {
+
+        File next = new File(snapshot.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(next);
+        DataOutputStream snap = new DataOutputStream(new BufferedOutputStream(file));
+
+        try {
+            byte[] stamp = clock.toBytes();
+
+            snap.writeInt(MAGIC);
+            snap.writeLong(generation + 1);
+            snap.writeInt(stamp.length);
+            snap.write(stamp);
+            snap.writeInt(held.size());
+            for (CausallyOrderedMessage msg : held) {
+                msg.write(snap);
+            }
+            snap.writeBoolean(membership != null);
+            if (membership != null) {
+                membership.write(snap);
+            }
+            snap.flush();
+            file.getFD().sync();
+        } finally {
+            snap.close();
+        }
+        Files.move(next.toPath(), snapshot.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ++generation;
+
+        close();
+        logFile = new FileOutputStream(log);
+        out = new DataOutputStream(new BufferedOutputStream(logFile));
+        out.writeInt(MAGIC);
+        out.writeLong(generation);
+        out.flush();
+        logFile.getFD().sync();
+    }
+
+    /**
+     * Read the last snapshot written
+     * @param held the messages held back are added here
+     * @return the clock, or null if there is no snapshot
+     * @see #membership()
+     */
+    VectorTimeStamp read(List<CausallyOrderedMessage> held) throws IOException {
+
+        DataInputStream in;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + snapshot);
+            }
+            generation = in.readLong();
+
+            byte[] stamp = new byte[in.readInt()];
+
+            in.readFully(stamp);
+            for (int count = in.readInt(); count > 0; --count) {
+                held.add(CausallyOrderedMessage.read(in));
+            }
+
+            VectorTimeStamp clock = new VectorTimeStamp(null, ByteBuffer.wrap(stamp));
+
+            membership = in.readBoolean() ? Membership.read(clock.getOwner(), in) : null;
+            return clock;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the view of the group in the snapshot read, null if the handler
+     * had none
+     */
+    Membership membership() {
+        return membership;
+    }
+
+    /**
+     * Replay the log following the snapshot read
+     */
+    void replay(Events events) throws IOException {
+
+        DataInputStream in;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+
+        try {
+            if (in.readInt() != MAGIC || in.readLong() != generation) {
+                return;
+            }
+            for (int type = in.read(); type != -1; type = in.read()) {
+                switch (type) {
+                case SEND:
+                    String destn = in.readUTF();
+
+                    events.send(destn);
+                    break;
+                case MULTICAST:
+                    String[] destns = new String[in.readInt()];
+
+                    for (int i = 0; i < destns.length; ++i) {
+                        destns[i] = in.readUTF();
+                    }
+                    events.multicast(destns);
+                    break;
+                case RECEIVE:
+                    events.receive(CausallyOrderedMessage.read(in));
+                    break;
+                case MEMBERS:
+                    String[] processes = new String[in.readInt()];
+
+                    for (int i = 0; i < processes.length; ++i) {
+                        processes[i] = in.readUTF();
+                    }
+                    events.members(processes);
+                    break;
+                default:
+                    throw new IOException("Bad checkpoint log record: " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // incomplete final record - never applied
+        } finally {
+            in.close();
+        }
+    }
+
+    void logSend(String destn) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+
+        try {
+            record.writeByte(SEND);
+            record.writeUTF(destn);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot log send to " + destn, e);
+        }
+        append(bytes.toByteArray(), true);
+    }
+
+    void logMulticast(String[] destn) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+
+        try {
+            record.writeByte(MULTICAST);
+            record.writeInt(destn.length);
+            for (String other : destn) {
+                record.writeUTF(other);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot log multicast", e);
+        }
+        append(bytes.toByteArray(), true);
+    }
+
+    void logMembers(String[] processes) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+
+        try {
+            record.writeByte(MEMBERS);
+            record.writeInt(processes.length);
+            for (String process : processes) {
+                record.writeUTF(process);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot log members", e);
+        }
+        append(bytes.toByteArray(), true);
+    }
+
+    /**
+     * Build the record of a message received, to be logged by logReceive
+     * once the message is accepted
+     * @throws IllegalStateException if the payload cannot be serialized
+     */
+    byte[] receiveRecord(CausallyOrderedMessage msg) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+
+        try {
+            record.writeByte(RECEIVE);
+            msg.write(record);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot log message: " + e, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    void logReceive(byte[] record) {
+        append(record, false);
+    }
+
+    /**
+     * write a whole record to the log. If the write fails the log is dropped
+     * without flushing what may be left of the record in its buffer.
+     */
+    private void append(byte[] record, boolean sync) {
+
+        if (out == null) {
+            throw new IllegalStateException("Checkpoint log " + log
+                    + " failed: take a new checkpoint");
+        }
+        try {
+            out.write(record);
+            out.flush();
+            if (sync) {
+                logFile.getFD().sync();
+            }
+        } catch (IOException e) {
+            FileOutputStream failed = logFile;
+
+            out = null;
+            logFile = null;
+            try {
+                failed.close();
+            } catch (IOException closing) {
+                // the write has failed already
+            }
+            throw new IllegalStateException("Cannot write checkpoint log " + log, e);
+        }
+    }
+
+    /**
+     * stop logging
+     */
+    void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+            logFile = null;
+        }
+    }
+}
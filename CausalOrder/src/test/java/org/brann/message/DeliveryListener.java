@@ -0,0 +1,18 @@
+package org.brann.message;
+
+/**
+ * Receives the payloads of messages as a CausallyOrderedMsgHandler delivers
+ * them, in causal order.
+ * @author John Brann
+ * @see CausallyOrderedMsgHandler#recvMessage(CausallyOrderedMessage, DeliveryListener)
+ */
+public interface DeliveryListener {
+
+    /**
+     * Called once for each message delivered, without the handler's lock, on
+     * the thread that received the message that made it deliverable (or, if
+     * an earlier listener failed, on the thread of the next receive).
+     * @param payload the payload of the delivered message
+     */
+    void deliver(Object payload);
+}
@@ -0,0 +1,94 @@
+package org.brann.message;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A DeliveryListener that queues each payload delivered, so that a separate
+ * thread can consume them in causal order while the receiving thread goes
+ * back to the network. An unbounded queue never blocks the receiving thread.
+ *
+ * A queue with a capacity applies backpressure instead: a delivery to a full
+ * queue waits for the consumer to take a payload, since by the time a payload
+ * is delivered the handler has taken the message into its clock and cannot
+ * hold it back again. The wait is made without the handler's lock, so the
+ * consumer may send through the handler as it takes payloads, but must not
+ * receive through it while the queue may be full: the receive would wait its
+ * turn behind the delivery waiting on the consumer. Interrupting a waiting
+ * delivery gives up the wait; the handler keeps the payload for the next
+ * receive.
+ * @author John Brann
+ */
+public class DeliveryQueue implements DeliveryListener {
+
+    private final BlockingQueue<Object> queue;
+
+    /**
+     * Creates a delivery queue with no limit on the payloads waiting
+     */
+    public DeliveryQueue() {
+        this(new LinkedBlockingQueue<Object>());
+    }
+
+    /**
+     * Creates a delivery queue around the argument queue.
+     * @param queue the queue payloads are added to. If it has a capacity, a
+     * delivery that would exceed it waits for room
+     */
+    public DeliveryQueue(BlockingQueue<Object> queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Queue the payload, waiting for room if the queue is full.
+     * @throws IllegalStateException if the thread is interrupted while it
+     * waits. The payload is not queued, and the interrupt is kept for the
+     * caller to see
+     */
+    public void deliver(Object payload) {
+        try {
+            queue.put(payload);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting to queue a delivery", e);
+        }
+    }
+
+    /**
+     * @return the next payload, waiting for one if none is queued
+     */
+    public Object take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * @return the next payload, or null if none is queued
+     */
+    public Object poll() {
+        return queue.poll();
+    }
+
+    /**
+     * @return the next payload, or null if none is queued within the timeout
+     */
+    public Object poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    /**
+     * Move every payload queued to the argument collection, in order.
+     * @return the number moved
+     */
+    public int drainTo(Collection<Object> payloads) {
+        return queue.drainTo(payloads);
+    }
+
+    /**
+     * @return the number of payloads queued
+     */
+    public int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,114 @@
+package org.brann.message;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.brann.clock.VectorTimeStamp;
+
+/**
+ * Bookkeeping for delta timestamps on point-to-point channels.
+ * 
+ * A sender remembers the complete timestamp it last sent to each destination
+ * and sends only what has changed since, numbering the messages on the channel
+ * from one. A receiver remembers the last complete timestamp rebuilt for each
+ * sender and applies each delta to it in sequence order. A delta that arrives
+ * ahead of its predecessor waits here for it: a delta means nothing until the
+ * timestamp it was taken against has been rebuilt, so it is the channel
+ * sequence, not causal order, that keeps the messages on a channel in order.
+ * Causal order only sees a message once its complete timestamp is rebuilt.
+ * @author John Brann
+ */
+class DeltaChannels {
+
+    private static class Outgoing {
+        private long sequence;
+        private VectorTimeStamp last;
+    }
+
+    private static class Incoming {
+        private long next = 1;
+        private VectorTimeStamp last;
+        private TreeMap<Long, CausallyOrderedMessage> early = new TreeMap<Long, CausallyOrderedMessage>();
+    }
+
+    private Map<String, Outgoing> outgoing = new HashMap<String, Outgoing>();
+    private Map<String, Incoming> incoming = new HashMap<String, Incoming>();
+
+    /**
+     * The delta to put on the next message to the destination. The argument
+     * becomes the new basis for the channel.
+     * @param destn destination process
+     * @param complete the complete timestamp for the message, not to be altered afterwards
+     */
+    VectorTimeStamp deltaTo(String destn, VectorTimeStamp complete) {
+
+        Outgoing channel = outgoing.get(destn);
+
+        if (channel == null) {
+            outgoing.put(destn, (channel = new Outgoing()));
+        }
+        VectorTimeStamp delta = complete.deltaFrom(channel.last);
+
+        channel.last = complete;
+        ++channel.sequence;
+        return delta;
+    }
+
+    /**
+     * @return true once a delta has been received on any channel
+     */
+    boolean receiving() {
+        return !incoming.isEmpty();
+    }
+
+    /**
+     * @return the sequence number of the delta last produced for the destination
+     */
+    long sequenceTo(String destn) {
+        return outgoing.get(destn).sequence;
+    }
+
+    /**
+     * Accept a message carrying a delta timestamp.
+     * @return the messages whose complete timestamps can now be rebuilt, in
+     * the order sent - empty if the message arrived ahead of its predecessor
+     */
+    List<CausallyOrderedMessage> received(CausallyOrderedMessage msg) {
+
+        String sender = msg.getVectorTimeStamp().getOwner();
+        Incoming channel = incoming.get(sender);
+
+        if (channel == null) {
+            incoming.put(sender, (channel = new Incoming()));
+        }
+
+        if (msg.getSequence() != channel.next) {
+            if (msg.getSequence() > channel.next) {
+                channel.early.put(msg.getSequence(), msg);
+            }
+            return Collections.emptyList();
+        }
+
+        List<CausallyOrderedMessage> ready = new LinkedList<CausallyOrderedMessage>();
+
+        for (CausallyOrderedMessage next = msg; next != null;
+             next = channel.early.remove(channel.next)) {
+
+            VectorTimeStamp complete = (channel.last == null) ? next.getVectorTimeStamp()
+                    : new VectorTimeStamp(channel.last);
+
+            if (channel.last != null) {
+                complete.applyDelta(next.getVectorTimeStamp());
+            }
+            next.setVectorTimeStamp(complete);
+            channel.last = complete;
+            ++channel.next;
+            ready.add(next);
+        }
+        return ready;
+    }
+}
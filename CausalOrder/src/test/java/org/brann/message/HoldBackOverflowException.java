@@ -0,0 +1,81 @@
+package org.brann.message;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.brann.clock.LogicalClock;
+
+/**
+ * Thrown when an out-of-order message cannot be held back because the
+ * receiver's hold-back buffer is full. The message has not been accepted.
+ *
+ * A batch of messages is received whole before any rejection is thrown: the
+ * first is thrown, and the rest are added to it as suppressed exceptions.
+ * @author John Brann
+ * @see OverflowPolicy#REJECT
+ */
+@SuppressWarnings("serial")
+public class HoldBackOverflowException extends RuntimeException {
+
+    private final String sender;
+    private final String process;
+    private final LogicalClock awaited;
+    private transient CausallyOrderedMessage rejected;
+    private transient List<Object> delivered = Collections.emptyList();
+
+    public HoldBackOverflowException(String sender, String process, LogicalClock awaited) {
+        super("Hold-back buffer full: message from " + sender + " waits on " + process
+                + " reaching " + awaited.toJsonString());
+        this.sender = sender;
+        this.process = process;
+        this.awaited = awaited;
+    }
+
+    HoldBackOverflowException(CausallyOrderedMessage rejected, String sender, String process,
+            LogicalClock awaited) {
+        this(sender, process, awaited);
+        this.rejected = rejected;
+    }
+
+    /**
+     * @return the message not accepted, to be received again later
+     */
+    public CausallyOrderedMessage getRejectedMessage() {
+        return rejected;
+    }
+
+    /**
+     * @return the payloads delivered by the call that threw this, for the
+     * calls that return them as a list (empty for the others, which hand each
+     * to the listener as it is delivered)
+     */
+    public List<Object> getDelivered() {
+        return delivered;
+    }
+
+    void setDelivered(List<Object> delivered) {
+        this.delivered = delivered;
+    }
+
+    /**
+     * @return the sender of the rejected message
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * @return the process whose Logical Clock in the receiver's vector clock
+     * the rejected message waits on
+     */
+    public String getProcess() {
+        return process;
+    }
+
+    /**
+     * @return the value the receiver's clock for the process must reach
+     */
+    public LogicalClock getAwaited() {
+        return awaited;
+    }
+}
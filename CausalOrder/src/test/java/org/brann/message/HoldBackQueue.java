@@ -0,0 +1,305 @@
+package org.brann.message;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.brann.clock.LogicalClock;
+import org.brann.clock.VectorTimeStamp;
+
+/**
+ * Buffer for out-of-order messages.
+ * 
+ * Held messages are partitioned by sender, each sender's ordered by the
+ * sender's own clock entry - the order they were sent in. A sender's later
+ * timestamps cover its earlier ones, so under the Schiper-Eggli-Sandoz rule
+ * its messages become deliverable in the order sent and only the head of each
+ * sender's queue need be checked.
+ * 
+ * Each head is filed under the process whose Logical Clock in the receiver's
+ * vector clock it is waiting on, ordered by the value that clock must reach.
+ * When the receiver's clock advances only the heads whose awaited value has
+ * been reached are handed back for re-checking, so the cost of a release is
+ * proportional to the number of senders with a message that might now be
+ * deliverable rather than to the number of messages held.
+ * 
+ * A message handed back that is still out of order is simply held again, and
+ * filed under whichever process it is now waiting on. Once a head is handed
+ * back, the next message from its sender is handed back by the following
+ * release, whether or not the head was delivered.
+ * 
+ * Messages other than heads may be spilled to a SegmentStore, leaving only
+ * their sender, position among the sender's messages and position in the
+ * store in memory. They are read back as they are handed back.
+ * @author John Brann
+ */
+class HoldBackQueue {
+
+    private static final Comparator<Held> BY_AWAITED = new Comparator<Held>() {
+        public int compare(Held a, Held b) {
+            if (a.awaited.isLessThan(b.awaited)) {
+                return -1;
+            }
+            return b.awaited.isLessThan(a.awaited) ? 1 : 0;
+        }
+    };
+
+    private static final Comparator<Held> BY_SENT = new Comparator<Held>() {
+        public int compare(Held a, Held b) {
+            return a.sent < b.sent ? -1 : (a.sent > b.sent ? 1 : 0);
+        }
+    };
+
+    private static class Held {
+        private CausallyOrderedMessage msg;
+        private final String sender;
+        private final long sent;
+        private int bytes;
+        private long position;
+        private String process;
+        private LogicalClock awaited;
+
+        Held(CausallyOrderedMessage msg, String sender, long sent) {
+            this.msg = msg;
+            this.sender = sender;
+            this.sent = sent;
+            this.bytes = (msg == null) ? 0 : msg.size();
+        }
+    }
+
+    private Map<String, PriorityQueue<Held>> senders = new HashMap<String, PriorityQueue<Held>>();
+    private Map<String, PriorityQueue<Held>> waiting = new HashMap<String, PriorityQueue<Held>>();
+    private List<String> unfiled = new ArrayList<String>();
+    private int size;
+    private long bytes;
+    private SegmentStore store;
+    private int spilled;
+
+    /**
+     * Hold a message that is out of order for the argument timestamp
+     * @param stamp the message's decoded timestamp
+     * @param clock the receiver's timestamp
+     */
+    void hold(CausallyOrderedMessage msg, VectorTimeStamp stamp, VectorTimeStamp clock) {
+
+        String sender = stamp.getOwner();
+        PriorityQueue<Held> queue = senders.get(sender);
+        Held held = new Held(msg, sender, stamp.ownerCount());
+
+        if (queue == null) {
+            senders.put(sender, (queue = new PriorityQueue<Held>(11, BY_SENT)));
+        }
+
+        Held head = queue.peek();
+
+        queue.add(held);
+        ++size;
+        bytes += held.bytes;
+
+        if (head == null || held.sent < head.sent) {
+            if (head != null && head.process != null) {
+                waiting.get(head.process).remove(head);
+                head.process = null;
+            }
+            unfiled.remove(sender);
+            file(held, stamp, clock);
+        }
+    }
+
+    /**
+     * Hold a message that is out of order for the argument timestamp, writing
+     * it to the store unless it would be the first held from its sender - in
+     * which case the head it displaces is written instead, unless that carries
+     * a delta timestamp, whose rebuilt timestamp is not written. A message the
+     * store cannot take - one that cannot be serialized, or a full disk - is
+     * held in memory instead.
+     * @param stamp the message's decoded timestamp
+     * @param clock the receiver's timestamp
+     * @return the message written to the store, whose decoded timestamp is no
+     * longer needed, or null if none was
+     */
+    CausallyOrderedMessage spill(CausallyOrderedMessage msg, VectorTimeStamp stamp,
+                                 VectorTimeStamp clock, SegmentStore store) {
+
+        PriorityQueue<Held> queue = senders.get(stamp.getOwner());
+        long sent = stamp.ownerCount();
+
+        this.store = store;
+        if (queue == null) {
+            hold(msg, stamp, clock);
+            return null;
+        }
+        if (sent < queue.peek().sent) {
+
+            Held written = queue.peek();
+
+            hold(msg, stamp, clock);
+            if (written.msg == null || written.msg.getSequence() != 0) {
+                return null;
+            }
+
+            CausallyOrderedMessage spilledMsg = written.msg;
+
+            try {
+                written.position = store.append(spilledMsg);
+            } catch (IllegalStateException e) {
+                return null;
+            }
+            bytes -= written.bytes;
+            written.msg = null;
+            written.bytes = 0;
+            ++spilled;
+            return spilledMsg;
+        }
+
+        Held written = new Held(null, stamp.getOwner(), sent);
+
+        try {
+            written.position = store.append(msg);
+        } catch (IllegalStateException e) {
+            hold(msg, stamp, clock);
+            return null;
+        }
+        queue.add(written);
+        ++size;
+        ++spilled;
+        return msg;
+    }
+
+    /**
+     * file a sender's head under the process it is waiting on
+     */
+    private void file(Held head, VectorTimeStamp stamp, VectorTimeStamp clock) {
+
+        head.process = clock.awaitedProcess(stamp);
+        head.awaited = clock.awaitedClock(stamp, head.process);
+
+        PriorityQueue<Held> queue = waiting.get(head.process);
+
+        if (queue == null) {
+            waiting.put(head.process, (queue = new PriorityQueue<Held>(11, BY_AWAITED)));
+        }
+        queue.add(head);
+    }
+
+    /**
+     * Hand back, at the next release, the heads filed under a process whose
+     * entries have been dropped from the receiver's clock
+     */
+    void retire(String process) {
+
+        PriorityQueue<Held> queue = waiting.remove(process);
+
+        if (queue != null) {
+            for (Held head : queue) {
+                head.process = null;
+                unfiled.add(head.sender);
+            }
+        }
+    }
+
+    /**
+     * Remove the heads whose awaited clock value has been reached in the
+     * argument timestamp, and the heads that follow those handed back before.
+     * A spilled head that cannot be read back stays held, and is tried again
+     * by the next release.
+     * @param released the messages to re-check are added here
+     * @throws IllegalStateException if a spilled message cannot be read
+     */
+    void release(VectorTimeStamp clock, List<CausallyOrderedMessage> released) {
+
+        List<String> following = unfiled;
+
+        unfiled = new ArrayList<String>();
+        for (int i = 0; i < following.size(); ++i) {
+            try {
+                handBack(following.get(i), released);
+            } catch (IllegalStateException e) {
+                unfiled.addAll(following.subList(i + 1, following.size()));
+                throw e;
+            }
+        }
+
+        for (Iterator<Map.Entry<String, PriorityQueue<Held>>> it = waiting.entrySet().iterator();
+             it.hasNext();) {
+
+            Map.Entry<String, PriorityQueue<Held>> entry = it.next();
+            PriorityQueue<Held> queue = entry.getValue();
+
+            while (!queue.isEmpty() && clock.hasReached(entry.getKey(), queue.peek().awaited)) {
+                handBack(queue.poll().sender, released);
+            }
+            if (queue.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * remove a sender's head, leaving the next message from the sender to be
+     * handed back by the following release
+     */
+    private void handBack(String sender, List<CausallyOrderedMessage> released) {
+
+        PriorityQueue<Held> queue = senders.get(sender);
+        Held head = queue.peek();
+
+        if (head.msg == null) {
+            try {
+                released.add(store.read(head.position));
+            } catch (IllegalStateException e) {
+                unfiled.add(sender);
+                throw e;
+            }
+            --spilled;
+        } else {
+            released.add(head.msg);
+        }
+        queue.poll();
+        --size;
+        bytes -= head.bytes;
+        if (queue.isEmpty()) {
+            senders.remove(sender);
+        } else {
+            unfiled.add(sender);
+        }
+    }
+
+    /**
+     * @return every message held, including those in the store
+     */
+    List<CausallyOrderedMessage> messages() {
+
+        List<CausallyOrderedMessage> held = new ArrayList<CausallyOrderedMessage>(size);
+
+        for (PriorityQueue<Held> queue : senders.values()) {
+            for (Held each : queue) {
+                held.add(each.msg == null ? store.peek(each.position) : each.msg);
+            }
+        }
+        return held;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of messages held in the store
+     */
+    int spilled() {
+        return spilled;
+    }
+
+    /**
+     * @return the estimated memory held by the messages held in memory
+     * @see CausallyOrderedMessage#size()
+     */
+    long bytes() {
+        return bytes;
+    }
+}
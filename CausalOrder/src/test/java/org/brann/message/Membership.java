@@ -0,0 +1,336 @@
+package org.brann.message;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.brann.clock.VectorTimeStamp;
+
+/**
+ * A handler's view of the members of its group, and of the processes that
+ * have left it.
+ * 
+ * A process leaves by announcing it and sends nothing afterwards, so the
+ * count of its own clock in the announcement is final. Once a member's
+ * clock has reached that count no constraint on the leaver's entry can hold
+ * a message back at the member. A member's clock is known from the messages
+ * it sends, so each member acknowledges the leave with the first message it
+ * sends to each other member after delivering the announcement.
+ * 
+ * When every other member's acknowledgement has been received, and this
+ * handler has sent its own to every other member, the leaver is retired: its
+ * entries are dropped from the handler's timestamp and ignored in every
+ * timestamp received afterwards.
+ * 
+ * Stripping stops once no message still to arrive can carry the leaver's
+ * entries. Each other member drops them when it retires the leaver itself,
+ * and a member's messages to this handler are delivered in the order sent,
+ * so once a message from a member without the leaver's clock is delivered,
+ * none of its later messages has it either. A process that joins while the
+ * entries are being stripped may have picked them up from a member that had
+ * not retired the leaver, and never drops them, so they are stripped for
+ * good.
+ * 
+ * A process that joins under a retired name is no longer retired, and its
+ * own messages are never stripped: a retired process sends nothing, so they
+ * are from the new one. Its entries in the messages of others are stripped
+ * until its join is delivered, so a name is best reused once the members
+ * have all delivered messages from each other since the leave.
+ * 
+ * The whole state is written to a handler's checkpoint snapshot, so that a
+ * recovered handler goes on following the group where it left off.
+ * @author John Brann
+ */
+class Membership {
+
+    private static class Leaving {
+        private final long last;
+        private final Set<String> unacknowledged;
+        private final Set<String> unannounced;
+
+        Leaving(long last, String[] others) {
+            this.last = last;
+            this.unacknowledged = new HashSet<String>(Arrays.asList(others));
+            this.unannounced = new HashSet<String>(Arrays.asList(others));
+        }
+
+        Leaving(long last, Set<String> unacknowledged, Set<String> unannounced) {
+            this.last = last;
+            this.unacknowledged = unacknowledged;
+            this.unannounced = unannounced;
+        }
+
+        boolean done() {
+            return unacknowledged.isEmpty() && unannounced.isEmpty();
+        }
+    }
+
+    private final String self;
+    private Set<String> members = new TreeSet<String>();
+    private Map<String, Leaving> leaving = new HashMap<String, Leaving>();
+    private Set<String> retired = new HashSet<String>();
+    private Map<String, Set<String>> stripping = new HashMap<String, Set<String>>();
+    private Set<String> strippedForGood = new HashSet<String>();
+    private long epoch;
+
+    Membership(String self) {
+        this.self = self;
+        members.add(self);
+    }
+
+    /**
+     * Start a new view
+     */
+    void setMembers(String[] processes) {
+        members.clear();
+        members.add(self);
+        Collections.addAll(members, processes);
+        ++epoch;
+    }
+
+    /**
+     * Apply a change announced in a message delivered
+     * @param stamp the decoded timestamp of the announcement
+     * @return the processes retired by the change
+     */
+    List<String> apply(MembershipChange change, VectorTimeStamp stamp) {
+
+        String process = change.getProcess();
+
+        ++epoch;
+        if (change.isJoin()) {
+            members.add(process);
+            retired.remove(process);
+            stripping.remove(process);
+            strippedForGood.remove(process);
+            strippedForGood.addAll(stripping.keySet());
+            stripping.clear();
+            return Collections.emptyList();
+        }
+
+        members.remove(process);
+
+        // a member that has left owes nothing for another leaver
+        for (Leaving left : leaving.values()) {
+            left.unacknowledged.remove(process);
+            left.unannounced.remove(process);
+        }
+        if (!process.equals(self)) {
+            leaving.put(process, new Leaving(stamp.ownerCount(), others()));
+        }
+        return retirements();
+    }
+
+    /**
+     * Note a member's clock, as carried by a message delivered from it
+     * @return the processes retired as a result
+     */
+    List<String> delivered(VectorTimeStamp stamp) {
+
+        boolean acknowledged = false;
+
+        for (Map.Entry<String, Leaving> entry : leaving.entrySet()) {
+
+            Leaving left = entry.getValue();
+
+            if (left.unacknowledged.contains(stamp.getOwner())
+                    && stamp.countFor(entry.getKey()) >= left.last) {
+                left.unacknowledged.remove(stamp.getOwner());
+                acknowledged = true;
+            }
+        }
+        return acknowledged ? retirements() : Collections.<String> emptyList();
+    }
+
+    /**
+     * Note a message sent, which carries this handler's acknowledgements
+     * @return the processes retired as a result
+     */
+    List<String> sent(String destn) {
+
+        boolean announced = false;
+
+        for (Leaving left : leaving.values()) {
+            announced |= left.unannounced.remove(destn);
+        }
+        return announced ? retirements() : Collections.<String> emptyList();
+    }
+
+    /**
+     * retire the leavers with nothing outstanding
+     */
+    private List<String> retirements() {
+
+        List<String> done = Collections.emptyList();
+
+        for (Iterator<Map.Entry<String, Leaving>> it = leaving.entrySet().iterator(); it.hasNext();) {
+
+            Map.Entry<String, Leaving> entry = it.next();
+
+            if (entry.getValue().done()) {
+                if (done.isEmpty()) {
+                    done = new ArrayList<String>();
+                }
+                done.add(entry.getKey());
+                retired.add(entry.getKey());
+                stripping.put(entry.getKey(), new HashSet<String>(members));
+                stripping.get(entry.getKey()).remove(self);
+                it.remove();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * @return the other members, to send announcements to
+     */
+    String[] others() {
+
+        Set<String> others = new TreeSet<String>(members);
+
+        others.remove(self);
+        return others.toArray(new String[others.size()]);
+    }
+
+    Set<String> members() {
+        return Collections.unmodifiableSet(new TreeSet<String>(members));
+    }
+
+    Set<String> retired() {
+        return retired;
+    }
+
+    /**
+     * Drop the entries of retired processes from a received timestamp
+     * @return the retired processes the sender no longer carries, to be
+     * passed to {@link #cleared} if the message is delivered
+     */
+    List<String> strip(VectorTimeStamp fromMsg) {
+
+        List<String> clear = Collections.emptyList();
+
+        for (Map.Entry<String, Set<String>> entry : stripping.entrySet()) {
+
+            if (entry.getKey().equals(fromMsg.getOwner())) {
+                continue;
+            }
+            if (fromMsg.countFor(entry.getKey()) == 0
+                    && entry.getValue().contains(fromMsg.getOwner())) {
+                if (clear.isEmpty()) {
+                    clear = new ArrayList<String>();
+                }
+                clear.add(entry.getKey());
+            }
+            fromMsg.retire(entry.getKey());
+        }
+        for (String process : strippedForGood) {
+            if (!process.equals(fromMsg.getOwner())) {
+                fromMsg.retire(process);
+            }
+        }
+        return clear;
+    }
+
+    /**
+     * Note a delivered message from a member that no longer carries the
+     * entries of retired processes, and stop stripping those no member
+     * still to be heard from carries
+     */
+    void cleared(String sender, List<String> processes) {
+        for (String process : processes) {
+
+            Set<String> carriers = stripping.get(process);
+
+            carriers.remove(sender);
+            if (carriers.isEmpty()) {
+                stripping.remove(process);
+            }
+        }
+    }
+
+    boolean isLeaving() {
+        return !leaving.isEmpty();
+    }
+
+    long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Write the whole state, for a checkpoint
+     * @see #read(String, DataInput)
+     */
+    void write(DataOutput out) throws IOException {
+
+        writeSet(out, members);
+        out.writeLong(epoch);
+        out.writeInt(leaving.size());
+        for (Map.Entry<String, Leaving> entry : leaving.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().last);
+            writeSet(out, entry.getValue().unacknowledged);
+            writeSet(out, entry.getValue().unannounced);
+        }
+        writeSet(out, retired);
+        out.writeInt(stripping.size());
+        for (Map.Entry<String, Set<String>> entry : stripping.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeSet(out, entry.getValue());
+        }
+        writeSet(out, strippedForGood);
+    }
+
+    /**
+     * Read the state written by write(DataOutput)
+     * @param self the name of the handler's process
+     */
+    static Membership read(String self, DataInput in) throws IOException {
+
+        Membership membership = new Membership(self);
+
+        membership.members = readSet(in, new TreeSet<String>());
+        membership.epoch = in.readLong();
+        for (int count = in.readInt(); count > 0; --count) {
+
+            String process = in.readUTF();
+            long last = in.readLong();
+            Set<String> unacknowledged = readSet(in, new HashSet<String>());
+
+            membership.leaving.put(process,
+                    new Leaving(last, unacknowledged, readSet(in, new HashSet<String>())));
+        }
+        membership.retired = readSet(in, new HashSet<String>());
+        for (int count = in.readInt(); count > 0; --count) {
+
+            String process = in.readUTF();
+
+            membership.stripping.put(process, readSet(in, new HashSet<String>()));
+        }
+        membership.strippedForGood = readSet(in, new HashSet<String>());
+        return membership;
+    }
+
+    private static void writeSet(DataOutput out, Set<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static Set<String> readSet(DataInput in, Set<String> names) throws IOException {
+        for (int count = in.readInt(); count > 0; --count) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,42 @@
+package org.brann.message;
+
+import java.io.Serializable;
+
+/**
+ * The payload of a message announcing that a process has joined or left the
+ * group a CausallyOrderedMsgHandler sends to. It is applied to the view of
+ * the members by each handler that delivers it, and delivered on like any
+ * other payload, so that the application sees changes in causal order.
+ * @author John Brann
+ * @see CausallyOrderedMsgHandler#join(String[])
+ * @see CausallyOrderedMsgHandler#leave()
+ */
+@SuppressWarnings("serial")
+public class MembershipChange implements Serializable {
+
+    private final String process;
+    private final boolean joined;
+
+    MembershipChange(String process, boolean joined) {
+        this.process = process;
+        this.joined = joined;
+    }
+
+    /**
+     * @return the process that has joined or left
+     */
+    public String getProcess() {
+        return process;
+    }
+
+    /**
+     * @return true if the process has joined, false if it has left
+     */
+    public boolean isJoin() {
+        return joined;
+    }
+
+    public String toString() {
+        return process + (joined ? " joined" : " left");
+    }
+}
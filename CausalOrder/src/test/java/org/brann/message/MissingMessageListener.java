@@ -0,0 +1,23 @@
+package org.brann.message;
+
+import org.brann.clock.LogicalClock;
+
+/**
+ * Told of the messages a CausallyOrderedMsgHandler is waiting on when its
+ * hold-back buffer overflows under OverflowPolicy.REPORT_MISSING.
+ * @author John Brann
+ * @see CausallyOrderedMsgHandler#setMissingMessageListener(MissingMessageListener)
+ */
+public interface MissingMessageListener {
+
+    /**
+     * Called, holding the handler's lock, for each message discarded.
+     * @param sender the sender of the discarded message, to be asked for it
+     * and the messages it follows again
+     * @param process the process whose Logical Clock in the receiver's vector
+     * clock the discarded message waits on
+     * @param awaited the value that clock must reach before the discarded
+     * message can be delivered
+     */
+    void missing(String sender, String process, LogicalClock awaited);
+}
@@ -0,0 +1,44 @@
+package org.brann.message;
+
+/**
+ * What a CausallyOrderedMsgHandler does with an out-of-order message that
+ * arrives when its hold-back buffer is full.
+ * @author John Brann
+ * @see CausallyOrderedMsgHandler#setHoldBackLimits(int, long)
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The receiving thread waits until the message can be delivered or held.
+     * Space is only freed when another thread receives the messages the held
+     * ones wait on, so this suits handlers with several receiving threads.
+     */
+    BLOCK,
+
+    /**
+     * The message is not accepted, and a HoldBackOverflowException is thrown
+     * to the receiving thread - after the rest of the batch, for a batch. The
+     * transport is to re-send it later. A message with a delta timestamp
+     * cannot be re-sent, so it is held in memory instead.
+     */
+    REJECT,
+
+    /**
+     * The message is not accepted, and the registered MissingMessageListener
+     * is told its sender and the clock entry it waits on, so that the messages
+     * missing can be asked for again along with the message discarded. A
+     * message with a delta timestamp cannot be sent again, so it is held in
+     * memory instead.
+     */
+    REPORT_MISSING,
+
+    /**
+     * The message is written to a memory-mapped segment file, and read back
+     * when it may be deliverable. Only its place in the hold-back queue is
+     * kept in memory. Payloads must be Serializable. The first message held
+     * from each sender, and messages with delta timestamps, are held in
+     * memory regardless.
+     * @see CausallyOrderedMsgHandler#setSpillDirectory(java.io.File)
+     */
+    SPILL
+}
@@ -0,0 +1,228 @@
+package org.brann.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only, memory-mapped segment files holding serialized messages that
+ * have been spilled from the hold-back queue.
+ * 
+ * Messages are appended to the current segment until it is full, when a new
+ * segment is started. A message is read back once, and a segment's file is
+ * unmapped and deleted once every message in it has been read - or, for the
+ * current segment, rewritten from the start. close() deletes the files of
+ * the segments still in use.
+ * @author John Brann
+ */
+class SegmentStore {
+
+    static final int SEGMENT_SIZE = 16 << 20;
+
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer map;
+        private int live;
+
+        Segment(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try {
+                this.file = file;
+                this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * unmap the segment and delete its file. The segment is not to be
+         * used again.
+         */
+        void release() {
+            unmap(map);
+            file.delete();
+        }
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+    private Segment current;
+    private int number = -1;
+    private long bytes;
+
+    /**
+     * @param directory where segment files are written
+     * @param prefix the start of each segment file's name, at least three
+     * characters
+     * @param segmentSize the size of each segment file
+     */
+    SegmentStore(File directory, String prefix, int segmentSize) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Append a message, serialized, without its decoded timestamp.
+     * @return the position of the message in the store
+     * @throws IllegalStateException if the message cannot be serialized or
+     * written
+     */
+    long append(CausallyOrderedMessage msg) {
+
+        byte[] record;
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+
+            oos.writeObject(msg);
+            oos.close();
+            record = out.toByteArray();
+
+            if (current == null || current.map.remaining() < 4 + record.length) {
+                current = new Segment(File.createTempFile(prefix, ".seg", directory),
+                        Math.max(segmentSize, 4 + record.length));
+                ++number;
+                segments.put(number, current);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot spill message to " + directory, e);
+        }
+
+        long position = ((long) number << 32) | current.map.position();
+
+        current.map.putInt(record.length).put(record);
+        ++current.live;
+        bytes += record.length;
+        return position;
+    }
+
+    /**
+     * Read back a message appended, which is then dropped from the store. The
+     * message is only dropped once it has been read, so one that cannot be
+     * read stays in the store.
+     * @param position the position returned when the message was appended
+     * @throws IllegalStateException if the message cannot be read
+     */
+    CausallyOrderedMessage read(long position) {
+
+        Segment segment = segments.get((int) (position >>> 32));
+        CausallyOrderedMessage msg = peek(position);
+
+        bytes -= segment.map.getInt((int) position);
+        if (--segment.live == 0) {
+            if (segment == current) {
+                current.map.clear();
+            } else {
+                segments.remove((int) (position >>> 32));
+                segment.release();
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * Read a message appended, leaving it in the store.
+     * @param position the position returned when the message was appended
+     * @throws IllegalStateException if the message cannot be read
+     */
+    CausallyOrderedMessage peek(long position) {
+
+        Segment segment = segments.get((int) (position >>> 32));
+        ByteBuffer record = segment.map.duplicate();
+
+        record.position((int) position);
+
+        byte[] serialized = new byte[record.getInt()];
+
+        record.get(serialized);
+
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+
+            try {
+                return (CausallyOrderedMessage) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read spilled message from " + segment.file, e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot read spilled message from " + segment.file, e);
+        }
+    }
+
+    /**
+     * @return the serialized size of the messages in the store
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of segment files in use
+     */
+    int segments() {
+        return segments.size();
+    }
+
+    /**
+     * Unmap and delete every segment, dropping the messages still in them.
+     * The store is empty afterwards, and may be appended to again.
+     */
+    void close() {
+
+        for (Segment segment : segments.values()) {
+            segment.release();
+        }
+        segments.clear();
+        current = null;
+        bytes = 0;
+    }
+
+    /**
+     * Unmap a segment now, rather than when the collector finds it, where the
+     * JVM allows it: through Unsafe.invokeCleaner from Java 9, or the buffer's
+     * cleaner before that. Otherwise the mapping is left to the collector.
+     * The buffer must not be touched afterwards.
+     */
+    private static void unmap(MappedByteBuffer map) {
+
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), map);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = map.getClass().getMethod("cleaner");
+
+                cleanerMethod.setAccessible(true);
+
+                Object cleaner = cleanerMethod.invoke(map);
+
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // left to the collector
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.brann.message;
+
+import java.util.ArrayDeque;
+
+import org.brann.clock.VectorTimeStamp;
+
+/**
+ * A bounded pool of timestamps for decoding received messages into. A
+ * timestamp is taken when a message's timestamp is first decoded and given
+ * back once the message has been delivered, to be reset and refilled for a
+ * later message. A pool may be shared between threads.
+ * @author John Brann
+ */
+class TimeStampPool {
+
+    private static final int CAPACITY = 64;
+
+    private final ArrayDeque<VectorTimeStamp> free = new ArrayDeque<VectorTimeStamp>();
+
+    /**
+     * @return a timestamp to be reset by the caller
+     */
+    synchronized VectorTimeStamp take() {
+
+        VectorTimeStamp pooled = free.poll();
+
+        return pooled == null ? new VectorTimeStamp((String) null) : pooled;
+    }
+
+    /**
+     * return a timestamp that is no longer referenced by its message
+     */
+    synchronized void give(VectorTimeStamp done) {
+
+        if (free.size() < CAPACITY) {
+            free.push(done);
+        }
+    }
+}